@@ -0,0 +1,379 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
+/**
+ * A BlockMaxIndex summarizes the inverted lists of frequent terms in
+ * fixed-size blocks of postings. For each block it records the last docid,
+ * the largest term frequency, and the shortest field length (from the
+ * DocLengthStore). Scores of the BM25 and Indri term weights grow with tf
+ * and shrink with document length, so these statistics bound the score that
+ * any document in the block can get, whatever the model parameters are.
+ * Dynamic pruning uses the bounds to skip whole blocks of documents.
+ * <p>
+ * The summary is stored in a file next to the Lucene index (the index path
+ * plus ".blockmax"). It is built once, offline, by running this class:
+ * </p>
+ *
+ * <pre>
+ *   java BlockMaxIndex indexPath [blockSize [minDf]]
+ * </pre>
+ * <p>
+ * Only terms whose df is at least minDf are summarized; shorter inverted
+ * lists are cheap to process anyway. Idx.open loads the file if it exists.
+ * </p>
+ */
+public class BlockMaxIndex {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The suffix that is added to the index path to name the file.
+	 */
+	public static final String SUFFIX = ".blockmax";
+
+	private static final int VERSION = 2;
+
+	private static final int DEFAULT_BLOCK_SIZE = 128;
+
+	private static final int DEFAULT_MIN_DF = 1024;
+
+	/**
+	 * The postings in each block (except, perhaps, the last block).
+	 */
+	private int blockSize;
+
+	/**
+	 * The summarized inverted lists, keyed by field and term.
+	 */
+	private HashMap<String, Blocks> lists = new HashMap<String, Blocks>();
+
+	/**
+	 * The block statistics of one inverted list.
+	 */
+	public static class Blocks {
+
+		/**
+		 * The docid of the last posting in each block, in ascending order.
+		 */
+		public final int[] lastDocids;
+
+		/**
+		 * The largest tf in each block.
+		 */
+		public final int[] maxTfs;
+
+		/**
+		 * The shortest field length of a document in each block.
+		 */
+		public final int[] minLengths;
+
+		private Blocks(int numBlocks) {
+			this.lastDocids = new int[numBlocks];
+			this.maxTfs = new int[numBlocks];
+			this.minLengths = new int[numBlocks];
+		}
+
+		/**
+		 * Get the number of blocks.
+		 *
+		 * @return The number of blocks.
+		 */
+		public int size() {
+			return this.lastDocids.length;
+		}
+	}
+
+	// --------------- Methods ---------------------------------------
+
+	private BlockMaxIndex(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Get the block statistics of a term's inverted list.
+	 *
+	 * @param fieldString
+	 *            The field that the term occurs in.
+	 * @param termString
+	 *            The processed (stemmed, lower-cased, etc) term string.
+	 * @return The blocks, or null if the inverted list isn't summarized.
+	 */
+	public Blocks get(String fieldString, String termString) {
+		return this.lists.get(fieldString + "\0" + termString);
+	}
+
+	/**
+	 * Get the number of postings in each block.
+	 *
+	 * @return The block size.
+	 */
+	public int getBlockSize() {
+		return this.blockSize;
+	}
+
+	/**
+	 * Identify the contents of an index, so that a file built from another
+	 * index isn't used. The version of a DirectoryReader only counts the
+	 * changes to an index, so an index that is rebuilt with the same
+	 * documents has the same version; each Lucene segment also has a random
+	 * id, which differs.
+	 *
+	 * @param reader
+	 *            The index.
+	 * @return The index version (0 if the reader isn't a DirectoryReader),
+	 *         and a hash of the ids of its segments.
+	 */
+	private static long[] getIndexId(IndexReader reader) {
+
+		long version = (reader instanceof DirectoryReader) ? ((DirectoryReader) reader)
+				.getVersion() : 0;
+		long segments = 0;
+
+		for (LeafReaderContext leaf : reader.leaves()) {
+			if (leaf.reader() instanceof SegmentReader) {
+				for (byte b : ((SegmentReader) leaf.reader()).getSegmentInfo().info.getId()) {
+					segments = 31 * segments + (b & 0xFF);
+				}
+			} else {
+				segments = 31 * segments + leaf.reader().maxDoc();
+			}
+		}
+
+		return new long[] { version, segments };
+	}
+
+	/**
+	 * Get the name of the file that holds the block statistics of an index.
+	 *
+	 * @param indexPath
+	 *            A directory that contains a Lucene index.
+	 * @return The file.
+	 */
+	public static File getFile(String indexPath) {
+		return new File(new File(indexPath).getPath() + SUFFIX);
+	}
+
+	/**
+	 * Read the block statistics of an index.
+	 *
+	 * @param indexPath
+	 *            A directory that contains a Lucene index.
+	 * @param reader
+	 *            The index, which is used to check that the statistics are
+	 *            current (see getIndexId).
+	 * @return The block statistics, or null if the index doesn't have them.
+	 * @throws IllegalArgumentException
+	 *             The statistics were built for a different index.
+	 * @throws IOException
+	 *             Error reading the file.
+	 */
+	public static BlockMaxIndex read(String indexPath, IndexReader reader)
+			throws IllegalArgumentException, IOException {
+
+		File file = getFile(indexPath);
+
+		if (!file.exists()) {
+			return null;
+		}
+
+		DataInputStream input = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16));
+
+		try {
+			if (input.readInt() != VERSION) {
+				throw new IllegalArgumentException("Unsupported format: " + file
+						+ ".  Rebuild it with BlockMaxIndex.");
+			}
+
+			long[] indexId = getIndexId(reader);
+
+			if ((input.readInt() != reader.maxDoc()) || (input.readLong() != indexId[0])
+					|| (input.readLong() != indexId[1])) {
+				throw new IllegalArgumentException(file
+						+ " doesn't match the index.  Rebuild it with BlockMaxIndex.");
+			}
+
+			BlockMaxIndex index = new BlockMaxIndex(input.readInt());
+			int numLists = input.readInt();
+
+			for (int i = 0; i < numLists; i++) {
+				String field = input.readUTF();
+				String term = input.readUTF();
+				Blocks blocks = new Blocks(input.readInt());
+
+				for (int j = 0; j < blocks.size(); j++) {
+					blocks.lastDocids[j] = input.readInt();
+					blocks.maxTfs[j] = input.readInt();
+					blocks.minLengths[j] = input.readInt();
+				}
+
+				index.lists.put(field + "\0" + term, blocks);
+			}
+
+			return index;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Build the block statistics of an index and write them to a file next
+	 * to it.
+	 *
+	 * @param index
+	 *            The index.
+	 * @param blockSize
+	 *            The number of postings in each block.
+	 * @param minDf
+	 *            Only inverted lists that have at least minDf postings are
+	 *            summarized.
+	 * @return The number of inverted lists summarized.
+	 * @throws IOException
+	 *             Error accessing the index or writing the file.
+	 */
+	public static int write(IndexContext index, int blockSize, int minDf)
+			throws IOException {
+
+		IndexReader reader = index.getReader();
+		long[] indexId = getIndexId(reader);
+		File file = getFile(index.getIndexPath());
+		File temp = new File(file.getPath() + ".tmp");
+		int numLists = 0;
+
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp), 1 << 16));
+
+		try {
+			output.writeInt(VERSION);
+			output.writeInt(reader.maxDoc());
+			output.writeLong(indexId[0]);
+			output.writeLong(indexId[1]);
+			output.writeInt(blockSize);
+			output.writeInt(0); // The number of lists; patched below.
+
+			for (String field : MultiFields.getIndexedFields(reader)) {
+
+				// Fields without lengths (e.g., externalId) aren't scored.
+
+				Terms terms = MultiFields.getTerms(reader, field);
+
+				if ((terms == null)
+						|| (MultiDocValues.getNormValues(reader, field) == null))
+					continue;
+
+				TermsEnum termsEnum = terms.iterator();
+				PostingsEnum postings = null;
+
+				while (termsEnum.next() != null) {
+
+					int df = termsEnum.docFreq();
+
+					if (df < minDf)
+						continue;
+
+					Blocks blocks = new Blocks((df + blockSize - 1) / blockSize);
+					postings = termsEnum.postings(postings, PostingsEnum.FREQS);
+
+					for (int j = 0; j < blocks.size(); j++) {
+						blocks.minLengths[j] = Integer.MAX_VALUE;
+					}
+
+					for (int n = 0; postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS; n++) {
+						int j = n / blockSize;
+						int docid = postings.docID();
+
+						blocks.lastDocids[j] = docid;
+						blocks.maxTfs[j] = Math.max(blocks.maxTfs[j], postings.freq());
+						blocks.minLengths[j] = Math.min(blocks.minLengths[j],
+								index.getFieldLength(field, docid));
+					}
+
+					output.writeUTF(field);
+					output.writeUTF(termsEnum.term().utf8ToString());
+					output.writeInt(blocks.size());
+
+					for (int j = 0; j < blocks.size(); j++) {
+						output.writeInt(blocks.lastDocids[j]);
+						output.writeInt(blocks.maxTfs[j]);
+						output.writeInt(blocks.minLengths[j]);
+					}
+
+					numLists++;
+				}
+			}
+		} finally {
+			output.close();
+		}
+
+		// Record the number of lists in the header.
+
+		RandomAccessFile header = new RandomAccessFile(temp, "rw");
+
+		try {
+			header.seek(28);
+			header.writeInt(numLists);
+		} finally {
+			header.close();
+		}
+
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Unable to replace " + file);
+		}
+
+		if (!temp.renameTo(file)) {
+			throw new IOException("Unable to create " + file);
+		}
+
+		return numLists;
+	}
+
+	/**
+	 * Build the block statistics of an index.
+	 *
+	 * @param args
+	 *            The index path, and optionally the block size and the
+	 *            minimum df of a summarized inverted list.
+	 * @throws Exception
+	 *             Error accessing the index or writing the file.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 1) {
+			System.err.println("Usage:  java BlockMaxIndex indexPath [blockSize [minDf]]");
+			System.exit(1);
+		}
+
+		String indexPath = args[0];
+		int blockSize = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_BLOCK_SIZE;
+		int minDf = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_MIN_DF;
+
+		if ((blockSize < 1) || (minDf < 1)) {
+			throw new IllegalArgumentException("blockSize and minDf must be positive.");
+		}
+
+		// Don't load a stale summary while the index is opened.
+
+		File file = getFile(indexPath);
+
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Unable to replace " + file);
+		}
+
+		Timer timer = new Timer();
+		timer.start();
+
+		Idx.open(indexPath);
+		int numLists = BlockMaxIndex.write(Idx.getCurrentContext(), blockSize, minDf);
+
+		timer.stop();
+		System.out.println(numLists + " inverted lists summarized in "
+				+ getFile(indexPath) + ", " + timer);
+	}
+}
@@ -0,0 +1,230 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.index.Term;
+
+/**
+ * CollectionStats provides the collection statistics of a corpus that is
+ * split over several indexes (shards): the number of documents, the field
+ * lengths, and the df and ctf of query terms and operators, each summed over
+ * every shard. When a retrieval model has a CollectionStats (see
+ * RetrievalModel.setCollectionStats), BM25 and Indri use these statistics
+ * instead of those of the shard that is searched, so a document gets the
+ * same score in any shard, and the top documents of the shards can be
+ * merged by score.
+ * <p>
+ * Field statistics are summed once per field. Term statistics are summed
+ * the first time that a query uses them, and they are cached for later
+ * queries. The df and ctf of a term are read from each shard's dictionary;
+ * other operators (e.g., #NEAR) are evaluated in each shard. A CollectionStats
+ * may be used by several threads. When several threads need the statistics
+ * of the same operator, one thread computes them and the others wait for it.
+ * </p>
+ */
+public class CollectionStats {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The largest number of operators whose statistics are cached. The cache
+	 * is emptied when it is full.
+	 */
+	private static final int MAX_CACHED_OPERATORS = 1 << 16;
+
+	private final IndexContext[] shards;
+
+	private final ConcurrentHashMap<String, FieldStats> fieldStats = new ConcurrentHashMap<String, FieldStats>();
+
+	/**
+	 * The df and ctf of query operators, indexed by the operator's string.
+	 * An entry is added before its statistics are computed, so a thread that
+	 * needs them while another thread computes them waits for the result.
+	 */
+	private final ConcurrentHashMap<String, FutureTask<long[]>> operatorStats = new ConcurrentHashMap<String, FutureTask<long[]>>();
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * @param shards
+	 *            The open indexes that the corpus is split over.
+	 */
+	public CollectionStats(List<IndexContext> shards) {
+
+		if (shards.isEmpty()) {
+			throw new IllegalArgumentException(
+					"Collection statistics need at least one index.");
+		}
+
+		this.shards = shards.toArray(new IndexContext[shards.size()]);
+	}
+
+	/**
+	 * Get the collection statistics of a field.
+	 *
+	 * @param fieldName
+	 *            The field name.
+	 * @return the field's statistics, summed over all shards.
+	 * @throws IOException
+	 *             Error accessing an index.
+	 */
+	public FieldStats getFieldStats(String fieldName) throws IOException {
+
+		FieldStats stats = this.fieldStats.get(fieldName);
+
+		if (stats == null) {
+			long numDocs = 0;
+			long docCount = 0;
+			long sumOfFieldLengths = 0;
+
+			for (IndexContext shard : this.shards) {
+				FieldStats shardStats = shard.getFieldStats(fieldName);
+				numDocs += shardStats.numDocs;
+				docCount += shardStats.docCount;
+				sumOfFieldLengths += shardStats.sumOfFieldLengths;
+			}
+
+			// The same object is returned for every request, so that it
+			// may identify the field's statistics (see RetrievalModelBM25).
+
+			stats = new FieldStats(fieldName, numDocs, docCount, sumOfFieldLengths);
+			FieldStats previous = this.fieldStats.putIfAbsent(fieldName, stats);
+
+			if (previous != null) {
+				stats = previous;
+			}
+		}
+
+		return stats;
+	}
+
+	/**
+	 * Get the document frequency (df) and collection term frequency (ctf) of
+	 * a query operator. If the operator isn't a term, it is evaluated in each
+	 * shard, so it must be initialized again before it is used.
+	 *
+	 * @param q
+	 *            A term or another query operator that produces an inverted
+	 *            list.
+	 * @param r
+	 *            The retrieval model that guides initialization.
+	 * @return the df and ctf, summed over all shards.
+	 * @throws IOException
+	 *             Error accessing an index.
+	 */
+	public long[] getStats(final QryIop q, final RetrievalModel r) throws IOException {
+
+		String key = q.toString();
+
+		while (true) {
+			FutureTask<long[]> task = this.operatorStats.get(key);
+
+			if (task == null) {
+
+				// This thread computes the statistics. Statistics of an
+				// operator whose evaluation was stopped by a deadline are too
+				// small, so they are returned to this thread but not kept.
+
+				final long[] stats = new long[2];
+				FutureTask<long[]> created = new FutureTask<long[]>(new Callable<long[]>() {
+					public long[] call() throws IOException {
+						sumStats(q, r, stats);
+						Deadline deadline = Deadline.getCurrent();
+						return ((deadline != null) && deadline.wasReached()) ? null : stats;
+					}
+				});
+
+				if (this.operatorStats.size() >= MAX_CACHED_OPERATORS) {
+					this.operatorStats.clear();
+				}
+
+				task = this.operatorStats.putIfAbsent(key, created);
+
+				if (task == null) {
+					long[] result = null;
+
+					try {
+						created.run();
+						result = getResult(created);
+					} finally {
+						if (result == null) {
+							this.operatorStats.remove(key, created);
+						}
+					}
+
+					return (result != null) ? result : stats;
+				}
+			}
+
+			// Another thread computes the statistics. If its deadline stopped
+			// it, they are computed again.
+
+			long[] result = getResult(task);
+
+			if (result != null) {
+				return result;
+			}
+
+			this.operatorStats.remove(key, task);
+		}
+	}
+
+	/**
+	 * Sum the df and ctf of a query operator over all shards.
+	 *
+	 * @param q
+	 *            A term or another query operator that produces an inverted
+	 *            list.
+	 * @param r
+	 *            The retrieval model that guides initialization.
+	 * @param stats
+	 *            Where the df and ctf are added.
+	 * @throws IOException
+	 *             Error accessing an index.
+	 */
+	private void sumStats(QryIop q, RetrievalModel r, long[] stats) throws IOException {
+
+		for (IndexContext shard : this.shards) {
+			if (q instanceof QryIopTerm) {
+				Term term = new Term(q.getField(), ((QryIopTerm) q).getTerm());
+				stats[0] += shard.getReader().docFreq(term);
+				stats[1] += shard.getReader().totalTermFreq(term);
+			} else {
+				q.initialize(r, shard);
+				stats[0] += q.getDf();
+				stats[1] += q.getCtf();
+			}
+		}
+	}
+
+	/**
+	 * Wait for the statistics that a task computes.
+	 *
+	 * @param task
+	 *            The task.
+	 * @return the df and ctf, or null if a deadline stopped the task.
+	 * @throws IOException
+	 *             Error accessing an index, or the thread was interrupted.
+	 */
+	private static long[] getResult(FutureTask<long[]> task) throws IOException {
+
+		try {
+			return task.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for collection statistics");
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			} else if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			} else if (ex.getCause() instanceof Error) {
+				throw (Error) ex.getCause();
+			}
+			throw new RuntimeException(ex.getCause());
+		}
+	}
+}
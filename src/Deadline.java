@@ -0,0 +1,105 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ * A Deadline limits the time that a query may take. Query evaluation checks
+ * the deadline of its thread (see setCurrent) cooperatively, once per
+ * candidate document: in QryEval.processQuery, in BM25 dynamic pruning, and
+ * while proximity operators (e.g., #NEAR) build their inverted lists. When
+ * the deadline is reached, evaluation stops early and returns the documents
+ * that it has scored so far. Afterwards, wasReached tells the caller whether
+ * evaluation stopped, so it can report that the results are truncated.
+ * <p>
+ * The clock is read once every few checks, so a check costs little more
+ * than a counter increment. A deadline may be checked by several threads
+ * (e.g., the shards of a federated search).
+ * </p>
+ */
+public class Deadline {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The clock is read every CHECK_INTERVAL checks (a power of 2).
+	 */
+	private static final int CHECK_INTERVAL = 64;
+
+	private static final ThreadLocal<Deadline> current = new ThreadLocal<Deadline>();
+
+	/**
+	 * When the deadline is reached, in System.nanoTime units.
+	 */
+	private final long deadlineNanos;
+
+	private volatile boolean reached = false;
+
+	/**
+	 * The number of checks. Threads may lose each other's increments, which
+	 * only changes when the clock is read.
+	 */
+	private int checks = 0;
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * @param millis
+	 *            The time that is allowed, starting now, in milliseconds.
+	 */
+	public Deadline(long millis) {
+		// Longer deadlines (e.g., from a client) would overflow; they are
+		// about 146 years anyway.
+
+		millis = Math.min(millis, Long.MAX_VALUE / 2000000L);
+		this.deadlineNanos = System.nanoTime() + millis * 1000000L;
+	}
+
+	/**
+	 * Get the deadline of queries that the calling thread evaluates.
+	 *
+	 * @return The deadline, or null if there is none.
+	 */
+	public static Deadline getCurrent() {
+		return current.get();
+	}
+
+	/**
+	 * Set the deadline of queries that the calling thread evaluates.
+	 *
+	 * @param deadline
+	 *            The deadline, or null for none.
+	 */
+	public static void setCurrent(Deadline deadline) {
+		if (deadline == null) {
+			current.remove();
+		} else {
+			current.set(deadline);
+		}
+	}
+
+	/**
+	 * Check whether the deadline has been reached. Once it has, evaluation
+	 * should stop.
+	 *
+	 * @return True if the deadline has been reached.
+	 */
+	public boolean isReached() {
+		if (!this.reached && ((this.checks++ & (CHECK_INTERVAL - 1)) == 0)
+				&& (System.nanoTime() - this.deadlineNanos >= 0)) {
+			this.reached = true;
+		}
+		return this.reached;
+	}
+
+	/**
+	 * Check whether a check (isReached) has found that the deadline was
+	 * reached, which stops evaluation. Unlike isReached, this doesn't read
+	 * the clock, so a query that finished in time isn't reported as
+	 * truncated because the caller checked too late.
+	 *
+	 * @return True if evaluation was stopped by the deadline.
+	 */
+	public boolean wasReached() {
+		return this.reached;
+	}
+}
@@ -2,9 +2,14 @@
  *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
  */
 
-import java.io.IOException;
+import java.io.*;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.MultiDocValues;
@@ -12,23 +17,222 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * By default lengths are read from Lucene's norms.  Lengths are read
+ * for every scored posting, so they can also be materialized when the
+ * index is opened (see setStorage): either into one int[] per field,
+ * or, for indexes too large for the heap, into a file next to the
+ * index (the index path plus ".lengths") that is memory-mapped.  Fields
+ * are identified by small integer ordinals (see getFieldOrdinal), so
+ * that scoring code can avoid a field name lookup per posting.
+ * </p>
+ * <p>
+ * A store may be used by several threads.  Lucene's norms must not be
+ * shared by threads, so with DOCVALUES storage each thread reads its own.
+ * </p>
  */
 public class DocLengthStore  {
 
+  /**
+   *  Where document lengths are read from.
+   */
+  public enum Storage {
+    DOCVALUES, ARRAY, MMAP
+  }
+
+  /**
+   *  The suffix that is added to the index path to name the lengths
+   *  file that MMAP storage uses.
+   */
+  public static final String SUFFIX = ".lengths";
+
+  private static final int VERSION = 1;
+
+  private static Storage storage = Storage.DOCVALUES;
+
   private IndexReader reader;
   private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
 
+  /**
+   *  Field ordinals, and the lengths of each field (by ordinal).  Fields
+   *  that don't have lengths have null entries.
+   */
+  private Map<String, Integer> fieldOrdinals = new HashMap<String, Integer>();
+  private NumericDocValues[] valuesByOrdinal;
+  private ThreadLocal<NumericDocValues[]> threadValues;
+  private int[][] arrays = null;
+  private IntBuffer[] buffers = null;
+
   /**
    * @param reader IndexReader object created in {@link Idx}.
    * @throws IOException Error accessing the Lucene index.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
+    this(reader, null);
+  }
+
+  /**
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param indexPath The directory of the index, which is needed for
+   * MMAP storage.  If it is null, ARRAY storage is used instead.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public DocLengthStore(IndexReader reader, String indexPath) throws IOException {
     this.reader = reader;
     for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+      this.values.put(field, MultiDocValues.getNormValues(reader, field));
+    }
+
+    String[] fields = this.values.keySet().toArray(new String[0]);
+    Arrays.sort(fields);
+
+    this.valuesByOrdinal = new NumericDocValues[fields.length];
+
+    for (int i = 0; i < fields.length; i++) {
+      this.fieldOrdinals.put(fields[i], i);
+      this.valuesByOrdinal[i] = this.values.get(fields[i]);
+    }
+
+    final String[] threadFields = fields;
+    final Thread owner = Thread.currentThread();
+
+    this.threadValues = new ThreadLocal<NumericDocValues[]>() {
+      @Override protected NumericDocValues[] initialValue() {
+        if (Thread.currentThread() == owner) {
+          return valuesByOrdinal;
+        }
+
+        NumericDocValues[] values = new NumericDocValues[threadFields.length];
+
+        try {
+          for (int i = 0; i < threadFields.length; i++) {
+            values[i] = MultiDocValues.getNormValues(DocLengthStore.this.reader, threadFields[i]);
+          }
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+
+        return values;
+      }
+    };
+
+    if ((DocLengthStore.storage == Storage.MMAP) && (indexPath != null)) {
+      this.buffers = this.mapLengths(indexPath, fields);
+    } else if (DocLengthStore.storage != Storage.DOCVALUES) {
+      this.arrays = new int[fields.length][];
+
+      for (int i = 0; i < fields.length; i++) {
+        if (this.valuesByOrdinal[i] != null) {
+          this.arrays[i] = new int[reader.maxDoc()];
+
+          for (int docid = 0; docid < this.arrays[i].length; docid++) {
+            this.arrays[i][docid] = (int) this.valuesByOrdinal[i].get(docid);
+          }
+        }
+      }
     }
   }
 
+  /**
+   *  Map the lengths file of an index, building it first if it doesn't
+   *  exist or was built for a different version of the index.
+   */
+  private IntBuffer[] mapLengths(String indexPath, String[] fields) throws IOException {
+
+    File file = new File(new File(indexPath).getPath() + SUFFIX);
+    int maxDoc = this.reader.maxDoc();
+    long indexVersion = (this.reader instanceof DirectoryReader) ?
+      ((DirectoryReader) this.reader).getVersion() : 0;
+
+    if (! file.exists() || ! isCurrent(file, maxDoc, indexVersion, fields)) {
+      File temp = new File(file.getPath() + ".tmp");
+      DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+
+      try {
+        writeHeader(output, maxDoc, indexVersion, fields);
+
+        for (int i = 0; i < fields.length; i++) {
+          for (int docid = 0; docid < maxDoc; docid++) {
+            output.writeInt((this.valuesByOrdinal[i] == null) ?
+                            0 : (int) this.valuesByOrdinal[i].get(docid));
+          }
+        }
+      } finally {
+        output.close();
+      }
+
+      if ((file.exists() && ! file.delete()) || ! temp.renameTo(file)) {
+        throw new IOException("Unable to create " + file);
+      }
+    }
+
+    // Each field is mapped separately, so the file may exceed 2 GB.
+
+    IntBuffer[] buffers = new IntBuffer[fields.length];
+    long start = headerLength(maxDoc, indexVersion, fields);
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try {
+      for (int i = 0; i < fields.length; i++) {
+        if (this.valuesByOrdinal[i] != null) {
+          MappedByteBuffer buffer = raf.getChannel().map(
+            FileChannel.MapMode.READ_ONLY, start + 4L * maxDoc * i, 4L * maxDoc);
+          buffers[i] = buffer.asIntBuffer();
+        }
+      }
+    } finally {
+      raf.close();
+    }
+
+    return buffers;
+  }
+
+  private static void writeHeader(DataOutputStream output, int maxDoc,
+                                  long indexVersion, String[] fields) throws IOException {
+    output.writeInt(VERSION);
+    output.writeInt(maxDoc);
+    output.writeLong(indexVersion);
+    output.writeInt(fields.length);
+
+    for (String field : fields) {
+      output.writeUTF(field);
+    }
+
+    // Align the lengths.
+
+    while (output.size() % 4 != 0) {
+      output.writeByte(0);
+    }
+  }
+
+  private static long headerLength(int maxDoc, long indexVersion,
+                                   String[] fields) throws IOException {
+    DataOutputStream output = new DataOutputStream(new ByteArrayOutputStream());
+    writeHeader(output, maxDoc, indexVersion, fields);
+    return output.size();
+  }
+
+  private static boolean isCurrent(File file, int maxDoc, long indexVersion,
+                                   String[] fields) throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    writeHeader(new DataOutputStream(expected), maxDoc, indexVersion, fields);
+
+    byte[] header = new byte[expected.size()];
+    DataInputStream input = new DataInputStream(new FileInputStream(file));
+
+    try {
+      input.readFully(header);
+    } catch (EOFException ex) {
+      return false;
+    } finally {
+      input.close();
+    }
+
+    return Arrays.equals(header, expected.toByteArray()) &&
+      (file.length() == header.length + 4L * maxDoc * fields.length);
+  }
+
   /**
    * Returns the length of the specified field in the specified document.
    *
@@ -39,6 +243,47 @@ public class DocLengthStore  {
    * @throws IOException Error accessing the Lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    return this.getDocLength(this.fieldOrdinals.get(fieldname), docid);
+  }
+
+  /**
+   * Returns the length of the specified field in the specified document.
+   *
+   * @param fieldOrdinal The field's ordinal (see getFieldOrdinal).
+   * @param docid The internal docid in the lucene index.
+   * @return long The length of the field.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public long getDocLength(int fieldOrdinal, int docid) throws IOException {
+    if (this.arrays != null) {
+      return this.arrays[fieldOrdinal][docid];
+    } else if (this.buffers != null) {
+      return this.buffers[fieldOrdinal].get(docid);
+    } else {
+      return this.threadValues.get()[fieldOrdinal].get(docid);
+    }
+  }
+
+  /**
+   * Returns the ordinal of a field, which identifies the field in
+   * getDocLength(int, int).
+   *
+   * @param fieldname Name of field.
+   * @return The field's ordinal, or -1 if the field isn't indexed.
+   */
+  public int getFieldOrdinal(String fieldname) {
+    Integer ordinal = this.fieldOrdinals.get(fieldname);
+    return (ordinal == null) ? -1 : ordinal;
+  }
+
+  /**
+   * Choose where document lengths are read from in stores that are
+   * created later.
+   *
+   * @param storage DOCVALUES (Lucene's norms, the default), ARRAY (an
+   * int[] per field), or MMAP (a memory-mapped file).
+   */
+  public static void setStorage(Storage storage) {
+    DocLengthStore.storage = storage;
   }
 }
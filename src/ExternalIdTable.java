@@ -0,0 +1,411 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+
+/**
+ * ExternalIdTable maps internal docids to external ids and back without
+ * going through Lucene. The table is a file next to the Lucene index (the
+ * index path plus ".extids") that is memory-mapped, so it costs little heap
+ * and is shared by every query. It is built from the index the first time
+ * it is needed, and rebuilt if the index changes.
+ * <p>
+ * The file has a header; the offset of each document's external id, in
+ * docid order; the docids sorted by external id; and the UTF-8 bytes of the
+ * external ids, in docid order. Looking up an external id is an array
+ * access; looking up an internal docid is a binary search over the sorted
+ * docids. Neither allocates memory (except for the returned String), and
+ * both are safe to use from several threads.
+ * </p>
+ */
+public class ExternalIdTable {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The suffix that is added to the index path to name the file.
+	 */
+	public static final String SUFFIX = ".extids";
+
+	private static final int VERSION = 1;
+
+	/**
+	 * The header is the version, maxDoc, the index version, and the length
+	 * of the external id bytes.
+	 */
+	private static final int HEADER_SIZE = 20;
+
+	private MappedByteBuffer buffer;
+
+	private int maxDoc;
+
+	/**
+	 * The positions of the sections in the file.
+	 */
+	private int offsetsStart;
+	private int sortedStart;
+	private int bytesStart;
+
+	// --------------- Methods ---------------------------------------
+
+	private ExternalIdTable(MappedByteBuffer buffer) {
+		this.buffer = buffer;
+		this.maxDoc = buffer.getInt(4);
+		this.offsetsStart = HEADER_SIZE;
+		this.sortedStart = this.offsetsStart + 4 * (this.maxDoc + 1);
+		this.bytesStart = this.sortedStart + 4 * this.maxDoc;
+	}
+
+	/**
+	 * Get the file that holds the external id table of an index.
+	 *
+	 * @param indexPath
+	 *            A directory that contains a Lucene index.
+	 * @return The file.
+	 */
+	public static File getFile(String indexPath) {
+		return new File(new File(indexPath).getPath() + SUFFIX);
+	}
+
+	/**
+	 * Open the external id table of an index, building it first if it
+	 * doesn't exist or was built for a different version of the index.
+	 *
+	 * @param indexPath
+	 *            A directory that contains a Lucene index.
+	 * @param reader
+	 *            The index.
+	 * @param externalIdField
+	 *            The field that stores external ids.
+	 * @return The table, or null if the index is too large for a table.
+	 * @throws IOException
+	 *             Error accessing the index or the file.
+	 */
+	public static ExternalIdTable open(String indexPath, IndexReader reader,
+			String externalIdField) throws IOException {
+
+		File file = getFile(indexPath);
+		long indexVersion = (reader instanceof DirectoryReader) ? ((DirectoryReader) reader)
+				.getVersion() : 0;
+
+		if (file.exists()) {
+			MappedByteBuffer buffer = map(file);
+
+			if ((buffer.capacity() >= HEADER_SIZE)
+					&& (buffer.getInt(0) == VERSION)
+					&& (buffer.getInt(4) == reader.maxDoc())
+					&& (buffer.getLong(8) == indexVersion)) {
+				return new ExternalIdTable(buffer);
+			}
+		}
+
+		if (!build(file, reader, externalIdField, indexVersion)) {
+			return null;
+		}
+
+		return new ExternalIdTable(map(file));
+	}
+
+	/**
+	 * Build the table file from the index.
+	 *
+	 * @return False if the index is too large for a table.
+	 */
+	private static boolean build(File file, IndexReader reader,
+			String externalIdField, long indexVersion) throws IOException {
+
+		int maxDoc = reader.maxDoc();
+		long bytesStart = HEADER_SIZE + 8L * maxDoc + 4;
+		int[] offsets = new int[maxDoc + 1];
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+
+		try {
+			raf.setLength(0);
+
+			// Write the external ids, in docid order.
+
+			raf.seek(bytesStart);
+			OutputStream output = new BufferedOutputStream(
+					Channels.newOutputStream(raf.getChannel()), 1 << 16);
+			BinaryDocValues values = getDocValues(reader, externalIdField);
+			Set<String> fields = Collections.singleton(externalIdField);
+			long length = 0;
+
+			for (int docid = 0; docid < maxDoc; docid++) {
+				String externalId;
+
+				if (values != null) {
+					externalId = values.get(docid).utf8ToString();
+				} else {
+					Document d = reader.document(docid, fields);
+					externalId = d.get(externalIdField);
+				}
+
+				byte[] bytes = (externalId == null) ? new byte[0] : externalId
+						.getBytes(StandardCharsets.UTF_8);
+
+				output.write(bytes);
+				length += bytes.length;
+
+				if (bytesStart + length > Integer.MAX_VALUE) {
+					output.close();
+					temp.delete();
+					return false; // Too large to map.
+				}
+
+				offsets[docid + 1] = (int) length;
+			}
+
+			output.flush();
+
+			// Write the header and the offsets.
+
+			MappedByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, bytesStart + length);
+
+			buffer.putInt(0, VERSION);
+			buffer.putInt(4, maxDoc);
+			buffer.putLong(8, indexVersion);
+			buffer.putInt(16, (int) length);
+
+			for (int i = 0; i <= maxDoc; i++) {
+				buffer.putInt(HEADER_SIZE + 4 * i, offsets[i]);
+			}
+
+			// Sort the docids by external id.
+
+			ExternalIdTable table = new ExternalIdTable(buffer);
+			int[] sorted = new int[maxDoc];
+
+			for (int i = 0; i < maxDoc; i++) {
+				sorted[i] = i;
+			}
+
+			table.sort(sorted, new int[maxDoc], 0, maxDoc);
+
+			for (int i = 0; i < maxDoc; i++) {
+				buffer.putInt(table.sortedStart + 4 * i, sorted[i]);
+			}
+
+			buffer.force();
+		} catch (IOException | RuntimeException ex) {
+			raf.close();
+			temp.delete();
+			throw ex;
+		}
+
+		raf.close();
+
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Unable to replace " + file);
+		}
+
+		if (!temp.renameTo(file)) {
+			throw new IOException("Unable to create " + file);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Get the external ids of an index if they are stored as doc values.
+	 *
+	 * @return The doc values, or null.
+	 */
+	private static BinaryDocValues getDocValues(IndexReader reader,
+			String externalIdField) throws IOException {
+
+		FieldInfo info = MultiFields.getMergedFieldInfos(reader).fieldInfo(
+				externalIdField);
+
+		if (info == null) {
+			return null;
+		} else if (info.getDocValuesType() == DocValuesType.SORTED) {
+			return MultiDocValues.getSortedValues(reader, externalIdField);
+		} else if (info.getDocValuesType() == DocValuesType.BINARY) {
+			return MultiDocValues.getBinaryValues(reader, externalIdField);
+		} else {
+			return null;
+		}
+	}
+
+	private static MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Compare the external ids of two documents, byte by byte.
+	 */
+	private int compare(int docid1, int docid2) {
+
+		int start1 = this.bytesStart + this.buffer.getInt(this.offsetsStart + 4 * docid1);
+		int end1 = this.bytesStart + this.buffer.getInt(this.offsetsStart + 4 * docid1 + 4);
+		int start2 = this.bytesStart + this.buffer.getInt(this.offsetsStart + 4 * docid2);
+		int end2 = this.bytesStart + this.buffer.getInt(this.offsetsStart + 4 * docid2 + 4);
+
+		while ((start1 < end1) && (start2 < end2)) {
+			int c = (this.buffer.get(start1++) & 0xFF) - (this.buffer.get(start2++) & 0xFF);
+
+			if (c != 0)
+				return c;
+		}
+
+		return (end1 - start1) - (end2 - start2);
+	}
+
+	/**
+	 * Compare a document's external id to an external id. For ASCII strings
+	 * (the usual case) the characters are compared to the bytes directly;
+	 * UTF-8 preserves the order of ASCII characters, and every non-ASCII
+	 * byte sorts after them.
+	 */
+	private int compare(int docid, String externalId, byte[] externalIdBytes) {
+
+		int start = this.bytesStart + this.buffer.getInt(this.offsetsStart + 4 * docid);
+		int end = this.bytesStart + this.buffer.getInt(this.offsetsStart + 4 * docid + 4);
+		int length = (externalIdBytes == null) ? externalId.length() : externalIdBytes.length;
+		int i = 0;
+
+		while ((start < end) && (i < length)) {
+			int b = (externalIdBytes == null) ? externalId.charAt(i) : (externalIdBytes[i] & 0xFF);
+			int c = (this.buffer.get(start++) & 0xFF) - b;
+
+			if (c != 0)
+				return c;
+
+			i++;
+		}
+
+		return (end - start) - (length - i);
+	}
+
+	/**
+	 * Get the external id of a document.
+	 *
+	 * @param docid
+	 *            The internal docid in the Lucene index.
+	 * @return The external id.
+	 */
+	public String getExternalDocid(int docid) {
+
+		int start = this.buffer.getInt(this.offsetsStart + 4 * docid);
+		int end = this.buffer.getInt(this.offsetsStart + 4 * docid + 4);
+		byte[] bytes = new byte[end - start];
+
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = this.buffer.get(this.bytesStart + start + i);
+		}
+
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Get the internal docid of a document. If no such document exists, or
+	 * several documents have the external id, throw an exception (as
+	 * Idx.getInternalDocid does).
+	 *
+	 * @param externalId
+	 *            The external id.
+	 * @return The internal docid.
+	 * @throws Exception
+	 *             The external id doesn't identify a document.
+	 */
+	public int getInternalDocid(String externalId) throws Exception {
+
+		byte[] externalIdBytes = null;
+
+		for (int i = 0; i < externalId.length(); i++) {
+			if (externalId.charAt(i) >= 0x80) {
+				externalIdBytes = externalId.getBytes(StandardCharsets.UTF_8);
+				break;
+			}
+		}
+
+		// Find the first document whose external id is not less than
+		// externalId.
+
+		int low = 0;
+		int high = this.maxDoc;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			int docid = this.buffer.getInt(this.sortedStart + 4 * mid);
+
+			if (this.compare(docid, externalId, externalIdBytes) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		if ((low == this.maxDoc)
+				|| (this.compare(this.buffer.getInt(this.sortedStart + 4 * low),
+						externalId, externalIdBytes) != 0)) {
+			throw new Exception("External id " + externalId + " not found.");
+		}
+
+		if ((low + 1 < this.maxDoc)
+				&& (this.compare(this.buffer.getInt(this.sortedStart + 4 * low + 4),
+						externalId, externalIdBytes) == 0)) {
+			throw new Exception("Multiple matches for external id " + externalId);
+		}
+
+		return this.buffer.getInt(this.sortedStart + 4 * low);
+	}
+
+	/**
+	 * Merge sort docids[from..to) by external id.
+	 */
+	private void sort(int[] docids, int[] temp, int from, int to) {
+
+		if (to - from < 16) {
+			for (int i = from + 1; i < to; i++) {
+				int docid = docids[i];
+				int j = i - 1;
+
+				while ((j >= from) && (this.compare(docids[j], docid) > 0)) {
+					docids[j + 1] = docids[j];
+					j--;
+				}
+				docids[j + 1] = docid;
+			}
+			return;
+		}
+
+		int mid = (from + to) >>> 1;
+
+		this.sort(docids, temp, from, mid);
+		this.sort(docids, temp, mid, to);
+
+		if (this.compare(docids[mid - 1], docids[mid]) <= 0)
+			return; // Already in order.
+
+		System.arraycopy(docids, from, temp, from, to - from);
+
+		int i = from;
+		int j = mid;
+
+		for (int k = from; k < to; k++) {
+			if ((j >= to) || ((i < mid) && (this.compare(temp[i], temp[j]) <= 0))) {
+				docids[k] = temp[i++];
+			} else {
+				docids[k] = temp[j++];
+			}
+		}
+	}
+}
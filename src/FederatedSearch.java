@@ -0,0 +1,297 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.index.Term;
+
+/**
+ * FederatedSearch evaluates a query against several open indexes (shards) at
+ * once, one worker thread per shard, and merges the top k documents of each
+ * shard into one ranking.
+ * <p>
+ * Each shard scores documents with its own collection statistics, so scores
+ * from different shards are not directly comparable. The merge normalizes
+ * them in one of these ways:
+ * </p>
+ * <ul>
+ * <li>none: scores are merged as they are. This is reasonable when the
+ * shards are random samples of one collection.
+ * <li>cori: the CORI merge (Callan et al., 1995). Each shard's scores are
+ * scaled to [0, 1] and weighted by the shard's CORI collection score for the
+ * query, D'' = (D' + 0.4 D' C') / 1.4.
+ * <li>global: every shard scores documents with the collection statistics of
+ * all of the shards (see CollectionStats), so scores are comparable, and
+ * they are merged as they are. BM25 and Indri give the same scores as they
+ * would for one index that has every document.
+ * </ul>
+ * <p>
+ * Internal docids are only meaningful within a shard, so the merged ranking
+ * carries each document's external id.
+ * </p>
+ */
+public class FederatedSearch {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * How scores from different shards are made comparable.
+	 */
+	public enum Normalization {
+		NONE, CORI, GLOBAL
+	}
+
+	/**
+	 * The CORI default belief, and the weight of the collection score in the
+	 * CORI merge.
+	 */
+	private static final double CORI_B = 0.4;
+
+	private final IndexContext[] shards;
+
+	private final Normalization normalization;
+
+	/**
+	 * The statistics of all of the shards, for global normalization.
+	 */
+	private final CollectionStats collectionStats;
+
+	private final ExecutorService workers;
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * @param shards
+	 *            The open indexes to search.
+	 * @param normalization
+	 *            How scores from different shards are made comparable.
+	 */
+	public FederatedSearch(List<IndexContext> shards,
+			Normalization normalization) {
+
+		if (shards.isEmpty()) {
+			throw new IllegalArgumentException(
+					"Federated search needs at least one index.");
+		}
+
+		this.shards = shards.toArray(new IndexContext[shards.size()]);
+		this.normalization = normalization;
+		this.collectionStats = (normalization == Normalization.GLOBAL) ? new CollectionStats(
+				shards) : null;
+		this.workers = Executors.newFixedThreadPool(this.shards.length,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "shard");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Get the collection statistics that retrieval models must use for the
+	 * normalization (see RetrievalModel.setCollectionStats).
+	 *
+	 * @return The statistics of all of the shards, or null if each shard
+	 *         uses its own.
+	 */
+	public CollectionStats getCollectionStats() {
+		return this.collectionStats;
+	}
+
+	/**
+	 * Stop the worker threads.
+	 */
+	public void close() {
+		this.workers.shutdownNow();
+	}
+
+	/**
+	 * Evaluate a query against every shard and merge the results.
+	 *
+	 * @param qString
+	 *            A string that contains a query.
+	 * @param model
+	 *            The retrieval model determines how matching and scoring is
+	 *            done.
+	 * @param k
+	 *            The number of documents needed from each shard, or 0 for all
+	 *            matching documents.
+	 * @return The merged results, unsorted.
+	 * @throws IOException
+	 *             Error accessing an index.
+	 */
+	public ScoreList search(final String qString, final RetrievalModel model,
+			final int k) throws IOException {
+
+		// Fan out.
+
+		List<Future<ScoreList>> pending = new ArrayList<Future<ScoreList>>();
+		final Deadline deadline = Deadline.getCurrent();
+
+		for (final IndexContext shard : this.shards) {
+			pending.add(this.workers.submit(new Callable<ScoreList>() {
+				public ScoreList call() throws IOException {
+					Deadline.setCurrent(deadline);
+					try {
+						return QryEval.processQuery(qString, model, k, shard);
+					} finally {
+						Deadline.setCurrent(null);
+					}
+				}
+			}));
+		}
+
+		ScoreList[] results = new ScoreList[this.shards.length];
+
+		for (int i = 0; i < results.length; i++) {
+			results[i] = getResult(pending.get(i));
+		}
+
+		// Merge.
+
+		double[] collectionScores = null;
+
+		if (this.normalization == Normalization.CORI) {
+			collectionScores = normalize(this.getCoriScores(qString, model));
+		}
+
+		ScoreList merged = new ScoreList(null);
+
+		for (int i = 0; i < results.length; i++) {
+			ScoreList r = results[i];
+
+			if (r == null)
+				continue;
+
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+
+			for (int j = 0; j < r.size(); j++) {
+				min = Math.min(min, r.getDocidScore(j));
+				max = Math.max(max, r.getDocidScore(j));
+			}
+
+			for (int j = 0; j < r.size(); j++) {
+				double score = r.getDocidScore(j);
+
+				if (collectionScores != null) {
+					double d = (max > min) ? (score - min) / (max - min) : 1.0;
+					score = (d + CORI_B * d * collectionScores[i]) / (1.0 + CORI_B);
+				}
+
+				merged.add(r.getDocid(j), r.getExternalDocid(j), score);
+			}
+		}
+
+		return merged;
+	}
+
+	/**
+	 * Get the CORI collection score (belief) of each shard for a query,
+	 * p(q|c_i) = mean over query terms of b + (1 - b) T I, where T =
+	 * df / (df + 50 + 150 cw / avg_cw) and I = log((|C| + 0.5) / cf) /
+	 * log(|C| + 1).
+	 */
+	private double[] getCoriScores(String qString, RetrievalModel model)
+			throws IOException {
+
+		List<QryIopTerm> terms = new ArrayList<QryIopTerm>();
+		Qry q = QryParser.getQuery(model.defaultQrySopName() + "(" + qString + ")");
+
+		if (q != null) {
+			collectTerms(q, terms);
+		}
+
+		double[] scores = new double[this.shards.length];
+
+		for (QryIopTerm term : terms) {
+			int[] dfs = new int[this.shards.length];
+			double[] cws = new double[this.shards.length];
+			double avgCw = 0.0;
+			int cf = 0;
+
+			for (int i = 0; i < this.shards.length; i++) {
+				dfs[i] = this.shards[i].getReader().docFreq(
+						new Term(term.getField(), term.getTerm()));
+				cws[i] = this.shards[i].getSumOfFieldLengths(term.getField());
+				avgCw += cws[i] / this.shards.length;
+
+				if (dfs[i] > 0)
+					cf++;
+			}
+
+			for (int i = 0; i < this.shards.length; i++) {
+				double t = 0.0;
+				double idf = 0.0;
+
+				if (dfs[i] > 0) {
+					t = dfs[i] / (dfs[i] + 50.0 + 150.0 * cws[i] / avgCw);
+					idf = Math.log((this.shards.length + 0.5) / cf)
+							/ Math.log(this.shards.length + 1.0);
+				}
+
+				scores[i] += (CORI_B + (1.0 - CORI_B) * t * idf) / terms.size();
+			}
+		}
+
+		return scores;
+	}
+
+	/**
+	 * Collect the terms of a query.
+	 */
+	private static void collectTerms(Qry q, List<QryIopTerm> terms) {
+		if (q instanceof QryIopTerm) {
+			terms.add((QryIopTerm) q);
+		} else {
+			for (int i = 0; i < q.args.size(); i++) {
+				collectTerms(q.args.get(i), terms);
+			}
+		}
+	}
+
+	/**
+	 * Wait for a shard's results.
+	 */
+	private static ScoreList getResult(Future<ScoreList> result)
+			throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted during federated search");
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			} else if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new RuntimeException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Scale values to [0, 1]. If they are all the same, they are all 1.
+	 */
+	private static double[] normalize(double[] values) {
+
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+
+		for (double value : values) {
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+
+		double[] normalized = new double[values.length];
+
+		for (int i = 0; i < values.length; i++) {
+			normalized[i] = (max > min) ? (values[i] - min) / (max - min) : 1.0;
+		}
+
+		return normalized;
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ * An immutable snapshot of the collection statistics of one field of an
+ * index. Lucene aggregates these statistics over the index segments each
+ * time they are requested, so Idx computes them once per field when an index
+ * is opened, and scoring code reads them from here instead of asking Lucene
+ * for every document that it scores.
+ */
+public class FieldStats {
+
+	/**
+	 * The field.
+	 */
+	public final String field;
+
+	/**
+	 * The number of documents in the index.
+	 */
+	public final long numDocs;
+
+	/**
+	 * The number of documents that have the field.
+	 */
+	public final long docCount;
+
+	/**
+	 * The total number of term occurrences in the field, in all documents.
+	 */
+	public final long sumOfFieldLengths;
+
+	/**
+	 * The average length of the field, in documents that have the field
+	 * (sumOfFieldLengths / docCount).
+	 */
+	public final double avgFieldLength;
+
+	/**
+	 * Read the statistics of a field from an index.
+	 *
+	 * @param reader
+	 *            The index.
+	 * @param field
+	 *            The field.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public FieldStats(IndexReader reader, String field) throws IOException {
+		this.field = field;
+		this.numDocs = reader.numDocs();
+		this.docCount = reader.getDocCount(field);
+		this.sumOfFieldLengths = reader.getSumTotalTermFreq(field);
+		this.avgFieldLength = (double) this.sumOfFieldLengths
+				/ (double) this.docCount;
+	}
+
+	/**
+	 * Create the statistics of a field from counts, e.g., counts that are
+	 * summed over several indexes.
+	 *
+	 * @param field
+	 *            The field.
+	 * @param numDocs
+	 *            The number of documents.
+	 * @param docCount
+	 *            The number of documents that have the field.
+	 * @param sumOfFieldLengths
+	 *            The total number of term occurrences in the field.
+	 */
+	public FieldStats(String field, long numDocs, long docCount,
+			long sumOfFieldLengths) {
+		this.field = field;
+		this.numDocs = numDocs;
+		this.docCount = docCount;
+		this.sumOfFieldLengths = sumOfFieldLengths;
+		this.avgFieldLength = (double) this.sumOfFieldLengths
+				/ (double) this.docCount;
+	}
+}
@@ -2,14 +2,9 @@
  *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
-import java.nio.file.Paths;
 import java.util.*;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
-import org.apache.lucene.search.*;
-import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.BytesRef;
 
 /**
  * Idx manages and provides access to Lucene indexes and auxiliary data
@@ -20,21 +15,35 @@ import org.apache.lucene.util.BytesRef;
  * Idx class designates one index the <i>current</i> index. All requests are
  * satisfied from the current index. setCurrentIndex changes the current index.
  * </p>
+ * <p>
+ * Each open index is an IndexContext, and Idx's static methods read from the
+ * current context. Code that must not depend on which index is current (e.g.,
+ * queries that are evaluated concurrently for different indexes) should use
+ * an IndexContext directly; query operators use the context that they were
+ * initialized with.
+ * </p>
  */
 public class Idx {
 
 	// --------------- Constants and variables ---------------------
 
 	/**
-	 * The Lucene index that is considered the current index.
+	 * The Lucene index that is considered the current index. This is the
+	 * reader of the current IndexContext.
 	 */
 	public static IndexReader INDEXREADER = null;
 
-	private static DocLengthStore DOCLENGTHSTORE = null;
+	/**
+	 * The current index.
+	 */
+	private static volatile IndexContext CURRENT = null;
+
+	private static HashMap<String, IndexContext> openContexts = new HashMap<String, IndexContext>();
 
-	private static HashMap<String, IndexReader> openIndexReaders = new HashMap<String, IndexReader>();
-	private static HashMap<String, DocLengthStore> openDocLengthStores = new HashMap<String, DocLengthStore>();
-	private static String externalIdField = new String("externalId");
+	/**
+	 * True if indexes are opened with an ExternalIdTable.
+	 */
+	private static boolean useExternalIdTables = false;
 
 	// --------------- Methods ---------------------------------------
 
@@ -51,9 +60,37 @@ public class Idx {
 	 */
 	public static String getAttribute(String attributeName, int docid)
 			throws IOException {
+		return Idx.CURRENT.getAttribute(attributeName, docid);
+	}
+
+	/**
+	 * Get the block statistics of the current index, which are built by
+	 * BlockMaxIndex.
+	 * 
+	 * @return the block statistics, or null if the index doesn't have them.
+	 */
+	public static BlockMaxIndex getBlockMaxIndex() {
+		return Idx.CURRENT.getBlockMaxIndex();
+	}
+
+	/**
+	 * Get an open index.
+	 * 
+	 * @param indexPath
+	 *            A directory that contains an open Lucene index.
+	 * @return the index, or null if it isn't open.
+	 */
+	public static synchronized IndexContext getContext(String indexPath) {
+		return openContexts.get(indexPath);
+	}
 
-		Document d = Idx.INDEXREADER.document(docid);
-		return d.get(attributeName);
+	/**
+	 * Get the current index.
+	 * 
+	 * @return the current index, or null if no index is open.
+	 */
+	public static IndexContext getCurrentContext() {
+		return Idx.CURRENT;
 	}
 
 	/**
@@ -66,7 +103,7 @@ public class Idx {
 	 *             Error accessing the Lucene index.
 	 */
 	public static int getDocCount(String fieldName) throws IOException {
-		return Idx.INDEXREADER.getDocCount(fieldName);
+		return Idx.CURRENT.getDocCount(fieldName);
 	}
 
 	/**
@@ -80,9 +117,32 @@ public class Idx {
 	 *             Error accessing the Lucene index.
 	 */
 	public static String getExternalDocid(int iid) throws IOException {
-		Document d = Idx.INDEXREADER.document(iid);
-		String eid = d.get(externalIdField);
-		return eid;
+		return Idx.CURRENT.getExternalDocid(iid);
+	}
+
+	/**
+	 * Get the directory of the current index.
+	 * 
+	 * @return the path that was used to open the current index.
+	 */
+	public static String getCurrentIndexPath() {
+		IndexContext current = Idx.CURRENT;
+		return (current == null) ? null : current.getIndexPath();
+	}
+
+	/**
+	 * Get the collection statistics of a field of the current index. They
+	 * are computed when the index is opened.
+	 * 
+	 * @param fieldName
+	 *            The field name.
+	 * @return the field's statistics.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public static FieldStats getFieldStats(String fieldName)
+			throws IOException {
+		return Idx.CURRENT.getFieldStats(fieldName);
 	}
 
 	/**
@@ -98,7 +158,37 @@ public class Idx {
 	 */
 	public static int getFieldLength(String fieldName, int docid)
 			throws IOException {
-		return (int) Idx.DOCLENGTHSTORE.getDocLength(fieldName, docid);
+		return Idx.CURRENT.getFieldLength(fieldName, docid);
+	}
+
+	/**
+	 * Get the length of the specified field in the specified document. This
+	 * is faster than getFieldLength(String, int) when the field's ordinal is
+	 * looked up once, before documents are scored.
+	 * 
+	 * @param fieldOrdinal
+	 *            The field's ordinal (see getFieldOrdinal).
+	 * @param docid
+	 *            The internal docid in the Lucene index.
+	 * @return the length of the field, including stopword positions.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public static int getFieldLength(int fieldOrdinal, int docid)
+			throws IOException {
+		return Idx.CURRENT.getFieldLength(fieldOrdinal, docid);
+	}
+
+	/**
+	 * Get the ordinal of a field of the current index, which identifies the
+	 * field in getFieldLength(int, int).
+	 * 
+	 * @param fieldName
+	 *            The field name.
+	 * @return the field's ordinal, or -1 if the field isn't indexed.
+	 */
+	public static int getFieldOrdinal(String fieldName) {
+		return Idx.CURRENT.getFieldOrdinal(fieldName);
 	}
 
 	/**
@@ -113,22 +203,7 @@ public class Idx {
 	 *             Could not read the internal document id from the index.
 	 */
 	public static int getInternalDocid(String externalId) throws Exception {
-
-		BytesRef termBytes = new BytesRef(externalId);
-		Term term = new Term(externalIdField, termBytes);
-		int df = Idx.INDEXREADER.docFreq(term);
-
-		if (df == 0) {
-			throw new Exception("External id " + externalId + " not found.");
-		} else if (df > 1) {
-			throw new Exception("Multiple matches for external id "
-					+ externalId);
-		}
-
-		PostingsEnum iList = MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
-				externalIdField, termBytes);
-		iList.nextDoc();
-		return (iList.docID());
+		return Idx.CURRENT.getInternalDocid(externalId);
 	}
 
 	/**
@@ -139,7 +214,7 @@ public class Idx {
 	 *             Error accessing the Lucene index.
 	 */
 	public static long getNumDocs() throws IOException {
-		return Idx.INDEXREADER.numDocs();
+		return Idx.CURRENT.getNumDocs();
 	}
 
 	/**
@@ -155,7 +230,7 @@ public class Idx {
 	 */
 	public static long getSumOfFieldLengths(String fieldName)
 			throws IOException {
-		return Idx.INDEXREADER.getSumTotalTermFreq(fieldName);
+		return Idx.CURRENT.getSumOfFieldLengths(fieldName);
 	}
 
 	/**
@@ -172,12 +247,12 @@ public class Idx {
 	 */
 	public static long getTotalTermFreq(String fieldName, String term)
 			throws IOException {
-		return INDEXREADER
-				.totalTermFreq(new Term(fieldName, new BytesRef(term)));
+		return Idx.CURRENT.getTotalTermFreq(fieldName, term);
 	}
 
 	/**
-	 * Open a Lucene index and the associated DocLengthStore.
+	 * Open a Lucene index and the associated DocLengthStore, and the
+	 * BlockMaxIndex if the index has one.
 	 * 
 	 * @param indexPath
 	 *            A directory that contains a Lucene index.
@@ -188,42 +263,34 @@ public class Idx {
 	 */
 	public static void open(String indexPath) throws IllegalArgumentException,
 			IOException {
-
-		IndexReader indexReader;
-		DocLengthStore docLengthStore;
-
-		// Open the Lucene index
-
-		indexReader = DirectoryReader.open(FSDirectory.open(Paths
-				.get(indexPath)));
-
-		if (indexReader == null) {
-			throw new IllegalArgumentException("Unable to open the index.");
-		}
-
-		// Lucene doesn't store field lengths the way that we want them,
-		// so we have our own document length store.
-
-		docLengthStore = new DocLengthStore(indexReader);
-
-		if (docLengthStore == null) {
-			throw new IllegalArgumentException(
-					"Unable to open the document length store.");
-		}
+		IndexContext context = IndexContext.open(indexPath, Idx.useExternalIdTables);
 
 		// Keep track of the open indexes.
 
-		openIndexReaders.put(indexPath, indexReader);
-		openDocLengthStores.put(indexPath, docLengthStore);
+		synchronized (Idx.class) {
+			openContexts.put(indexPath, context);
 
-		// The current index defaults to the first open index.
+			// The current index defaults to the first open index.
 
-		if (Idx.INDEXREADER == null) {
-			Idx.INDEXREADER = indexReader;
-			Idx.DOCLENGTHSTORE = docLengthStore;
+			if (Idx.CURRENT == null) {
+				Idx.INDEXREADER = context.getReader();
+				Idx.CURRENT = context;
+			}
 		}
 	}
 
+	/**
+	 * Choose whether indexes are opened with a memory-mapped ExternalIdTable,
+	 * which makes getExternalDocid and getInternalDocid much faster. This
+	 * affects indexes that are opened later.
+	 * 
+	 * @param enabled
+	 *            True to use external id tables.
+	 */
+	public static void setExternalIdTables(boolean enabled) {
+		Idx.useExternalIdTables = enabled;
+	}
+
 	/**
 	 * Change the current index to another open Lucene index.
 	 * 
@@ -235,15 +302,16 @@ public class Idx {
 	public static void setCurrentIndex(String indexPath)
 			throws IllegalArgumentException {
 
-		IndexReader indexReader = openIndexReaders.get(indexPath);
-		DocLengthStore docLengthStore = openDocLengthStores.get(indexPath);
+		IndexContext context = Idx.getContext(indexPath);
 
-		if ((indexReader == null) || (docLengthStore == null)) {
+		if (context == null) {
 			throw new IllegalArgumentException(
 					"An index must be open before it can be the current index");
 		}
 
-		Idx.INDEXREADER = indexReader;
-		Idx.DOCLENGTHSTORE = docLengthStore;
+		synchronized (Idx.class) {
+			Idx.INDEXREADER = context.getReader();
+			Idx.CURRENT = context;
+		}
 	}
 }
@@ -0,0 +1,408 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * An IndexContext is one open Lucene index and the auxiliary data structures
+ * that are opened with it: the DocLengthStore, the collection statistics of
+ * each field, the external id doc values or table, and the BlockMaxIndex.
+ * <p>
+ * A context doesn't change after it is opened, so it may be used by several
+ * threads at once. Query operators are initialized with the context that they
+ * search (see Qry.initialize), so queries for different indexes can be
+ * evaluated concurrently. Idx keeps the open contexts, and its static methods
+ * read from the current context.
+ * </p>
+ */
+public class IndexContext {
+
+	// --------------- Constants and variables ---------------------
+
+	private static final String externalIdField = "externalId";
+
+	/**
+	 * The stored fields that getExternalDocid loads, if the index doesn't
+	 * have external id doc values.
+	 */
+	private static final Set<String> externalIdFields = Collections
+			.singleton(externalIdField);
+
+	/**
+	 * The directory of the index.
+	 */
+	private final String indexPath;
+
+	private final IndexReader reader;
+
+	private final DocLengthStore docLengthStore;
+
+	/**
+	 * Block statistics, or null if the index doesn't have them.
+	 */
+	private final BlockMaxIndex blockMaxIndex;
+
+	/**
+	 * The external ids, if they are stored as doc values, otherwise null.
+	 */
+	private final BinaryDocValues externalIdValues;
+
+	/**
+	 * The external id table, or null if external id tables are disabled.
+	 */
+	private final ExternalIdTable externalIdTable;
+
+	/**
+	 * Collection statistics of the indexed fields, and of fields that were
+	 * requested but aren't indexed.
+	 */
+	private final Map<String, FieldStats> fieldStats;
+
+	// --------------- Methods ---------------------------------------
+
+	private IndexContext(String indexPath, IndexReader reader,
+			DocLengthStore docLengthStore, BlockMaxIndex blockMaxIndex,
+			BinaryDocValues externalIdValues, ExternalIdTable externalIdTable,
+			Map<String, FieldStats> fieldStats) {
+		this.indexPath = indexPath;
+		this.reader = reader;
+		this.docLengthStore = docLengthStore;
+		this.blockMaxIndex = blockMaxIndex;
+		this.externalIdValues = externalIdValues;
+		this.externalIdTable = externalIdTable;
+		this.fieldStats = fieldStats;
+	}
+
+	/**
+	 * Open a Lucene index and the associated DocLengthStore, and the
+	 * BlockMaxIndex if the index has one.
+	 *
+	 * @param indexPath
+	 *            A directory that contains a Lucene index.
+	 * @param useExternalIdTable
+	 *            True to open (or build) the index's ExternalIdTable.
+	 * @return The context.
+	 * @throws IllegalArgumentException
+	 *             Unable to open the index.
+	 * @throws IOException
+	 *             Error accessing the index.
+	 */
+	public static IndexContext open(String indexPath, boolean useExternalIdTable)
+			throws IllegalArgumentException, IOException {
+
+		IndexReader indexReader;
+		DocLengthStore docLengthStore;
+
+		// Open the Lucene index
+
+		indexReader = DirectoryReader.open(FSDirectory.open(Paths
+				.get(indexPath)));
+
+		if (indexReader == null) {
+			throw new IllegalArgumentException("Unable to open the index.");
+		}
+
+		// Lucene doesn't store field lengths the way that we want them,
+		// so we have our own document length store.
+
+		docLengthStore = new DocLengthStore(indexReader, indexPath);
+
+		if (docLengthStore == null) {
+			throw new IllegalArgumentException(
+					"Unable to open the document length store.");
+		}
+
+		// External ids may also be stored as doc values.
+
+		BinaryDocValues externalIdValues = null;
+		FieldInfo externalIdInfo = MultiFields.getMergedFieldInfos(indexReader)
+				.fieldInfo(externalIdField);
+
+		if (externalIdInfo != null) {
+			if (externalIdInfo.getDocValuesType() == DocValuesType.SORTED) {
+				externalIdValues = MultiDocValues.getSortedValues(indexReader,
+						externalIdField);
+			} else if (externalIdInfo.getDocValuesType() == DocValuesType.BINARY) {
+				externalIdValues = MultiDocValues.getBinaryValues(indexReader,
+						externalIdField);
+			}
+		}
+
+		// The external id table is built the first time that the index
+		// is opened with tables enabled.
+
+		ExternalIdTable externalIdTable = null;
+
+		if (useExternalIdTable) {
+			externalIdTable = ExternalIdTable.open(indexPath, indexReader,
+					externalIdField);
+		}
+
+		// Lucene aggregates collection statistics over segments each time
+		// they are requested, so take a snapshot of them.
+
+		Map<String, FieldStats> fieldStats = new ConcurrentHashMap<String, FieldStats>();
+
+		for (String field : MultiFields.getIndexedFields(indexReader)) {
+			fieldStats.put(field, new FieldStats(indexReader, field));
+		}
+
+		// Block statistics are optional.
+
+		BlockMaxIndex blockMaxIndex = BlockMaxIndex.read(indexPath, indexReader);
+
+		return new IndexContext(indexPath, indexReader, docLengthStore,
+				blockMaxIndex, externalIdValues, externalIdTable, fieldStats);
+	}
+
+	/**
+	 * Get the specified attribute from the specified document.
+	 *
+	 * @param attributeName
+	 *            Name of attribute
+	 * @param docid
+	 *            The internal docid in the lucene index.
+	 * @return the attribute value
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public String getAttribute(String attributeName, int docid)
+			throws IOException {
+
+		Document d = this.reader.document(docid);
+		return d.get(attributeName);
+	}
+
+	/**
+	 * Get the block statistics of the index, which are built by
+	 * BlockMaxIndex.
+	 *
+	 * @return the block statistics, or null if the index doesn't have them.
+	 */
+	public BlockMaxIndex getBlockMaxIndex() {
+		return this.blockMaxIndex;
+	}
+
+	/**
+	 * Get the number of documents that contain the specified field.
+	 *
+	 * @param fieldName
+	 *            the field name
+	 * @return the number of documents that contain the field
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public int getDocCount(String fieldName) throws IOException {
+		return (int) this.getFieldStats(fieldName).docCount;
+	}
+
+	/**
+	 * Get the external document id for a document specified by an internal
+	 * document id.
+	 *
+	 * @param iid
+	 *            The internal document id of the document.
+	 * @return the external document id
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public String getExternalDocid(int iid) throws IOException {
+
+		if (this.externalIdTable != null) {
+			return this.externalIdTable.getExternalDocid(iid);
+		}
+
+		// Doc values are columnar, so they are much cheaper than loading
+		// the document's stored fields.  They reuse their result, so
+		// threads take turns.
+
+		if (this.externalIdValues != null) {
+			synchronized (this.externalIdValues) {
+				return this.externalIdValues.get(iid).utf8ToString();
+			}
+		}
+
+		Document d = this.reader.document(iid, externalIdFields);
+		String eid = d.get(externalIdField);
+		return eid;
+	}
+
+	/**
+	 * Get the collection statistics of a field. They are computed when the
+	 * index is opened, or when a field that isn't indexed is first
+	 * requested. The same object is returned each time, so callers may cache
+	 * values by field statistics.
+	 *
+	 * @param fieldName
+	 *            The field name.
+	 * @return the field's statistics.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public FieldStats getFieldStats(String fieldName) throws IOException {
+
+		FieldStats stats = this.fieldStats.get(fieldName);
+
+		if (stats == null) {
+
+			// The field isn't indexed.
+
+			stats = new FieldStats(this.reader, fieldName);
+			FieldStats previous = this.fieldStats.putIfAbsent(fieldName, stats);
+
+			if (previous != null) {
+				stats = previous;
+			}
+		}
+
+		return stats;
+	}
+
+	/**
+	 * Get the length of the specified field in the specified document.
+	 *
+	 * @param fieldName
+	 *            Name of field to access lengths.
+	 * @param docid
+	 *            The internal docid in the Lucene index.
+	 * @return the length of the field, including stopword positions.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public int getFieldLength(String fieldName, int docid) throws IOException {
+		return (int) this.docLengthStore.getDocLength(fieldName, docid);
+	}
+
+	/**
+	 * Get the length of the specified field in the specified document. This
+	 * is faster than getFieldLength(String, int) when the field's ordinal is
+	 * looked up once, before documents are scored.
+	 *
+	 * @param fieldOrdinal
+	 *            The field's ordinal (see getFieldOrdinal).
+	 * @param docid
+	 *            The internal docid in the Lucene index.
+	 * @return the length of the field, including stopword positions.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public int getFieldLength(int fieldOrdinal, int docid) throws IOException {
+		return (int) this.docLengthStore.getDocLength(fieldOrdinal, docid);
+	}
+
+	/**
+	 * Get the ordinal of a field, which identifies the field in
+	 * getFieldLength(int, int).
+	 *
+	 * @param fieldName
+	 *            The field name.
+	 * @return the field's ordinal, or -1 if the field isn't indexed.
+	 */
+	public int getFieldOrdinal(String fieldName) {
+		return this.docLengthStore.getFieldOrdinal(fieldName);
+	}
+
+	/**
+	 * Get the directory of the index.
+	 *
+	 * @return the path that was used to open the index.
+	 */
+	public String getIndexPath() {
+		return this.indexPath;
+	}
+
+	/**
+	 * Get the internal document id for a document specified by its external id,
+	 * e.g. clueweb09-enwp00-88-09710. If no such document exists, throw an
+	 * exception.
+	 *
+	 * @param externalId
+	 *            The external docid in the Lucene index.
+	 * @return iternal docid.
+	 * @throws Exception
+	 *             Could not read the internal document id from the index.
+	 */
+	public int getInternalDocid(String externalId) throws Exception {
+
+		if (this.externalIdTable != null) {
+			return this.externalIdTable.getInternalDocid(externalId);
+		}
+
+		BytesRef termBytes = new BytesRef(externalId);
+		Term term = new Term(externalIdField, termBytes);
+		int df = this.reader.docFreq(term);
+
+		if (df == 0) {
+			throw new Exception("External id " + externalId + " not found.");
+		} else if (df > 1) {
+			throw new Exception("Multiple matches for external id "
+					+ externalId);
+		}
+
+		PostingsEnum iList = MultiFields.getTermPositionsEnum(this.reader,
+				externalIdField, termBytes);
+		iList.nextDoc();
+		return (iList.docID());
+	}
+
+	/**
+	 * Get the total number of documents in the corpus.
+	 *
+	 * @return The total number of documents.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public long getNumDocs() throws IOException {
+		return this.reader.numDocs();
+	}
+
+	/**
+	 * Get the Lucene index.
+	 *
+	 * @return the index reader.
+	 */
+	public IndexReader getReader() {
+		return this.reader;
+	}
+
+	/**
+	 * Get the total number of term occurrences contained in all instances of
+	 * the specified field in the corpus (e.g., add up the lengths of every
+	 * TITLE field in the corpus).
+	 *
+	 * @param fieldName
+	 *            The field name.
+	 * @return The total number of term occurrence
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public long getSumOfFieldLengths(String fieldName) throws IOException {
+		return this.getFieldStats(fieldName).sumOfFieldLengths;
+	}
+
+	/**
+	 * Get the collection term frequency (ctf) of a term in a field (e.g., the
+	 * total number of times the term 'apple' occurs in title fields.
+	 *
+	 * @param fieldName
+	 *            The field name.
+	 * @param term
+	 *            The term.
+	 * @return The total number of term occurrence
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public long getTotalTermFreq(String fieldName, String term)
+			throws IOException {
+		return this.reader.totalTermFreq(new Term(fieldName,
+				new BytesRef(term)));
+	}
+}
@@ -12,11 +12,36 @@ import org.apache.lucene.search.*;
  * This class implements the inverted list data structure and provides methods
  * for accessing and manipulating inverted lists. Its purpose is to provide a
  * simpler view of inverted lists than Lucene's native implementation.
+ * <p>
+ * Postings are stored in flat primitive arrays rather than as one object per
+ * posting. Document ids and term frequencies are stored in int arrays that
+ * are indexed by posting number. Positions are delta-encoded within each
+ * posting and compressed with variable-byte encoding into a single byte
+ * array; positionOffsets records where each posting's positions start.
+ * Positions are decoded on demand by getPositions.
+ * </p>
  */
 public class InvList {
 
 	// --------------- Constants and variables -----------------------
 
+	/**
+	 * The initial capacity of the posting arrays. They grow as needed.
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * The number of postings that findDocid checks one at a time before it
+	 * starts to gallop.
+	 */
+	private static final int LINEAR_PROBE = 16;
+
+	/**
+	 * The number of postings covered by each skip pointer, or 0 if inverted
+	 * lists don't have skip pointers. See setSkipInterval.
+	 */
+	private static int skipInterval = 0;
+
 	/**
 	 * Collection term frequency: The number of times that a term occurs across
 	 * all instances of the specified field.
@@ -29,56 +54,49 @@ public class InvList {
 	 */
 	public int df = 0;
 
+	/**
+	 * The largest term frequency in any document of the inverted list.
+	 * Dynamic pruning uses it to bound the score that the term can
+	 * contribute to a document.
+	 */
+	public int maxTf = 0;
+
 	/**
 	 * The field covered by the inverted list.
 	 */
 	public String field;
 
 	/**
-	 * Postings that contain information about the occurrence of the term in
-	 * individual documents.
+	 * The internal ids of the documents that contain the term in the
+	 * specified field, in ascending order. Only the first df entries are
+	 * valid.
 	 */
-	public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-	// --------------- Nested classes --------------------------------
+	private int[] docids = new int[INITIAL_CAPACITY];
 
 	/**
-	 * Utility class that makes it easier to construct postings.
+	 * Term frequencies: The number of times the term occurs in the specified
+	 * field of each document.
 	 */
-	public class DocPosting {
+	private int[] tfs = new int[INITIAL_CAPACITY];
 
-		/**
-		 * The internal id of a document that contains the term in the specified
-		 * field.
-		 */
-		public int docid = 0;
-
-		/**
-		 * Term frequency: The number of times the term occurs in the specified
-		 * field of the document.
-		 */
-		public int tf = 0;
-
-		/**
-		 * The locations where the term occurs in the specified field of the
-		 * document.
-		 */
-		public Vector<Integer> positions = new Vector<Integer>();
+	/**
+	 * The offset in positions of the first (compressed) position of each
+	 * posting. Entry df marks the end of the last posting.
+	 */
+	private int[] positionOffsets = new int[INITIAL_CAPACITY + 1];
 
-		public DocPosting(int d, int... locations) {
-			this.docid = d;
-			this.tf = locations.length;
-			for (int i = 0; i < locations.length; i++)
-				this.positions.add(locations[i]);
-		}
+	/**
+	 * The delta-encoded, variable-byte compressed positions of every posting.
+	 * Only the first positionOffsets[df] bytes are valid.
+	 */
+	private byte[] positions = new byte[INITIAL_CAPACITY * 4];
 
-		public DocPosting(int d, List<Integer> locations) {
-			this.docid = d;
-			this.tf = locations.size();
-			for (int i = 0; i < locations.size(); i++)
-				this.positions.add(locations.get(i));
-		}
-	}
+	/**
+	 * Skip pointers: skipDocids[j] is the last docid of the j'th group of
+	 * skipInterval postings. Built on demand by findDocid; null if the list
+	 * is too short to benefit or has changed since they were built.
+	 */
+	private volatile int[] skipDocids = null;
 
 	// --------------- Methods ---------------------------------------
 
@@ -90,7 +108,7 @@ public class InvList {
 
 	/**
 	 * Get an empty inverted list.
-	 * 
+	 *
 	 * @param fieldString
 	 *            The field that the term occurs in.
 	 */
@@ -99,8 +117,8 @@ public class InvList {
 	}
 
 	/**
-	 * Get an inverted list from the index.
-	 * 
+	 * Get an inverted list from the current index.
+	 *
 	 * @param termString
 	 *            The processed (stemmed, lower-cased, etc) term string.
 	 * @param fieldString
@@ -109,6 +127,23 @@ public class InvList {
 	 *             Error accessing the Lucene index.
 	 */
 	public InvList(String termString, String fieldString) throws IOException {
+		this(Idx.getCurrentContext(), termString, fieldString);
+	}
+
+	/**
+	 * Get an inverted list from an index.
+	 *
+	 * @param index
+	 *            The index.
+	 * @param termString
+	 *            The processed (stemmed, lower-cased, etc) term string.
+	 * @param fieldString
+	 *            The field that the term occurs in.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public InvList(IndexContext index, String termString, String fieldString)
+			throws IOException {
 
 		// Store the field name. This is used by other query operators.
 
@@ -119,12 +154,21 @@ public class InvList {
 		BytesRef termBytes = new BytesRef(termString);
 		Term term = new Term(fieldString, termBytes);
 
-		if (Idx.INDEXREADER.docFreq(term) < 1)
+		IndexReader reader = index.getReader();
+		int docFreq = reader.docFreq(term);
+
+		if (docFreq < 1)
 			return;
 
+		// The df is known, so the arrays can be allocated just once.
+
+		this.docids = new int[docFreq];
+		this.tfs = new int[docFreq];
+		this.positionOffsets = new int[docFreq + 1];
+
 		// Lookup the inverted list.
 
-		PostingsEnum iList = MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
+		PostingsEnum iList = MultiFields.getTermPositionsEnum(reader,
 				fieldString, termBytes);
 
 		// Copy from Lucene inverted list format to our inverted list
@@ -132,24 +176,32 @@ public class InvList {
 		// operators such as #SYN and #NEAR/n to be insulated from the
 		// details of Lucene inverted list implementations.
 
+		int[] locations = new int[INITIAL_CAPACITY];
+
 		while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
 			int tf = iList.freq();
-			int[] positions = new int[tf];
+
+			if (locations.length < tf)
+				locations = new int[Math.max(tf, locations.length * 2)];
 
 			for (int j = 0; j < tf; j++)
-				positions[j] = iList.nextPosition();
+				locations[j] = iList.nextPosition();
 
-			this.postings.add(new DocPosting(iList.docID(), positions));
-			this.df++;
-			this.ctf += tf;
+			this.appendPosting(iList.docID(), locations, tf);
 		}
+
+		// The list is complete, so release the unused part of the
+		// positions buffer.
+
+		this.positions = Arrays.copyOf(this.positions,
+				this.positionOffsets[this.df]);
 	}
 
 	/**
 	 * Append a posting to the posting list. Posting must be appended in docid
 	 * order, otherwise this method fails.
-	 * 
+	 *
 	 * @param docid
 	 *            The internal document id of the posting.
 	 * @param positions
@@ -158,40 +210,276 @@ public class InvList {
 	 */
 	public boolean appendPosting(int docid, List<Integer> positions) {
 
+		int[] locations = new int[positions.size()];
+
+		for (int i = 0; i < locations.length; i++)
+			locations[i] = positions.get(i);
+
+		return this.appendPosting(docid, locations, locations.length);
+	}
+
+	/**
+	 * Append a posting to the posting list. Posting must be appended in docid
+	 * order, otherwise this method fails.
+	 *
+	 * @param docid
+	 *            The internal document id of the posting.
+	 * @param locations
+	 *            An array of positions where the term occurs, in ascending
+	 *            order. Only the first tf entries are used.
+	 * @param tf
+	 *            The number of positions in locations.
+	 * @return true if the posting was added successfully, otherwise false.
+	 */
+	public boolean appendPosting(int docid, int[] locations, int tf) {
+
 		// A posting can only be appended if its docid is greater than
 		// the last docid.
 
-		if ((this.df > 1) && (this.postings.get(this.df - 1).docid >= docid))
+		if ((this.df > 0) && (this.docids[this.df - 1] >= docid))
 			return false;
 
-		DocPosting p = new DocPosting(docid, positions);
+		if (this.df == this.docids.length) {
+			int capacity = Math.max(INITIAL_CAPACITY, this.docids.length * 2);
+			this.docids = Arrays.copyOf(this.docids, capacity);
+			this.tfs = Arrays.copyOf(this.tfs, capacity);
+			this.positionOffsets = Arrays.copyOf(this.positionOffsets,
+					capacity + 1);
+		}
+
+		// Each position needs at most 5 bytes.
+
+		int offset = this.positionOffsets[this.df];
+
+		if (this.positions.length < offset + 5 * tf) {
+			this.positions = Arrays.copyOf(this.positions,
+					Math.max(this.positions.length * 2, offset + 5 * tf));
+		}
+
+		int previous = 0;
 
-		this.postings.add(p);
+		for (int i = 0; i < tf; i++) {
+			int delta = locations[i] - previous;
+			previous = locations[i];
+
+			while ((delta & ~0x7F) != 0) {
+				this.positions[offset++] = (byte) ((delta & 0x7F) | 0x80);
+				delta >>>= 7;
+			}
+			this.positions[offset++] = (byte) delta;
+		}
+
+		this.docids[this.df] = docid;
+		this.tfs[this.df] = tf;
 		this.df++;
-		this.ctf += p.tf;
+		this.positionOffsets[this.df] = offset;
+		this.ctf += tf;
+		this.maxTf = Math.max(this.maxTf, tf);
+		this.skipDocids = null;
 		return true;
 	}
 
 	/**
-	 * Get the n'th document id from the inverted list.
-	 * 
+	 * Find the first posting at or after index from whose document id is at
+	 * least docid. Instead of a linear scan, the search gallops (exponential
+	 * search followed by binary search), so advancing over a gap of g
+	 * postings costs O(log g). If skip pointers are enabled, long jumps
+	 * gallop over the skip pointers first, which touches less memory.
+	 *
+	 * @param from
+	 *            The index of the posting to start from.
 	 * @param docid
+	 *            The internal document id to search for.
+	 * @return The index of the posting, or df if there is none.
+	 */
+	public int findDocid(int from, int docid) {
+
+		if ((from >= this.df) || (this.docids[from] >= docid))
+			return from;
+
+		int end = this.df;
+
+		if ((InvList.skipInterval > 0)
+				&& (this.df >= 2 * InvList.skipInterval)) {
+
+			int[] skipDocids = this.skipDocids;
+
+			if (skipDocids == null)
+				skipDocids = this.buildSkipDocids();
+
+			// Find the group of postings that contains docid, and limit
+			// the search to it.
+
+			int group = from / InvList.skipInterval;
+
+			if (skipDocids[group] < docid) {
+				group = gallop(skipDocids, group, skipDocids.length, docid);
+
+				if (group == skipDocids.length)
+					return this.df;
+
+				from = Math.max(from, group * InvList.skipInterval);
+			}
+
+			end = Math.min(this.df, (group + 1) * InvList.skipInterval);
+
+			if (this.docids[from] >= docid)
+				return from;
+		}
+
+		return gallop(this.docids, from, end, docid);
+	}
+
+	/**
+	 * Exponential search for the first entry of a[from..end) that is at
+	 * least key, given that a[from] is less than key and a is sorted.
+	 *
+	 * @return The index of the entry, or end if there is none.
+	 */
+	private static int gallop(int[] a, int from, int end, int key) {
+
+		// Short advances are common, and a short linear probe is faster
+		// than a search for them.
+
+		int probeEnd = Math.min(end, from + LINEAR_PROBE);
+
+		for (int i = from + 1; i < probeEnd; i++) {
+			if (a[i] >= key)
+				return i;
+		}
+
+		if (probeEnd == end)
+			return end;
+
+		// Double the step until it passes key, then binary search the last
+		// step.
+
+		int low = probeEnd - 1;
+		int step = 1;
+		int high = low + step;
+
+		while ((high < end) && (a[high] < key)) {
+			low = high;
+			step <<= 1;
+			high = low + step;
+		}
+
+		if (high > end)
+			high = end;
+
+		int i = Arrays.binarySearch(a, low + 1, high, key);
+		return (i >= 0) ? i : -(i + 1);
+	}
+
+	/**
+	 * Build the skip pointers for the current postings. Cached inverted
+	 * lists may be searched by several threads, so the skip pointers are
+	 * published only after they are complete.
+	 */
+	private int[] buildSkipDocids() {
+
+		int groups = (this.df + InvList.skipInterval - 1)
+				/ InvList.skipInterval;
+		int[] skips = new int[groups];
+
+		for (int j = 0; j < groups; j++) {
+			int last = Math.min(this.df, (j + 1) * InvList.skipInterval) - 1;
+			skips[j] = this.docids[last];
+		}
+
+		this.skipDocids = skips;
+		return skips;
+	}
+
+	/**
+	 * Get the n'th document id from the inverted list.
+	 *
+	 * @param n
 	 *            The index of the requested document.
 	 * @return The internal document id.
 	 */
-	public int getDocid(int docid) {
-		return this.postings.get(docid).docid;
+	public int getDocid(int n) {
+		return this.docids[n];
+	}
+
+	/**
+	 * Get the positions of the term in the n'th document of the inverted
+	 * list.
+	 *
+	 * @param n
+	 *            The index of the requested document positions.
+	 * @return The positions, in ascending order.
+	 */
+	public int[] getPositions(int n) {
+		int[] locations = new int[this.tfs[n]];
+		this.getPositions(n, locations);
+		return locations;
+	}
+
+	/**
+	 * Decode the positions of the term in the n'th document of the inverted
+	 * list into a caller-supplied buffer. This avoids allocating an array for
+	 * each posting when a query operator iterates over many documents.
+	 *
+	 * @param n
+	 *            The index of the requested document positions.
+	 * @param buffer
+	 *            An array of at least getTf(n) entries.
+	 * @return The number of positions decoded (the term frequency).
+	 */
+	public int getPositions(int n, int[] buffer) {
+
+		int offset = this.positionOffsets[n];
+		int tf = this.tfs[n];
+		int location = 0;
+
+		for (int i = 0; i < tf; i++) {
+			int b = this.positions[offset++];
+			int delta = b & 0x7F;
+
+			for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+				b = this.positions[offset++];
+				delta |= (b & 0x7F) << shift;
+			}
+
+			location += delta;
+			buffer[i] = location;
+		}
+
+		return tf;
+	}
+
+	/**
+	 * Estimate the amount of memory used by the postings of the inverted
+	 * list. Skip pointers are small, and are not included.
+	 *
+	 * @return The approximate size of the inverted list, in bytes.
+	 */
+	public long sizeInBytes() {
+		return 64 + 4L * (this.docids.length + this.tfs.length
+				+ this.positionOffsets.length) + this.positions.length;
+	}
+
+	/**
+	 * Set the number of postings covered by each skip pointer. Skip pointers
+	 * are built only for lists that have at least two groups of postings.
+	 *
+	 * @param interval
+	 *            Postings per skip pointer, or 0 to disable skip pointers.
+	 */
+	public static void setSkipInterval(int interval) {
+		InvList.skipInterval = Math.max(0, interval);
 	}
 
 	/**
 	 * Get the term frequency in the n'th document of the inverted list.
-	 * 
+	 *
 	 * @param n
 	 *            The index of the requested document term frequency.
 	 * @return The document's term frequency.
 	 */
 	public int getTf(int n) {
-		return this.postings.get(n).tf;
+		return this.tfs[n];
 	}
 
 	/**
@@ -202,12 +490,13 @@ public class InvList {
 		System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
 		for (int i = 0; i < this.df; i++) {
-			System.out.print("docid:  " + this.postings.elementAt(i).docid
-					+ ", tf: " + this.postings.elementAt(i).tf + ", locs: ");
+			System.out.print("docid:  " + this.docids[i] + ", tf: "
+					+ this.tfs[i] + ", locs: ");
+
+			int[] locations = this.getPositions(i);
 
-			for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-				System.out.print(this.postings.elementAt(i).positions
-						.elementAt(j) + " ");
+			for (int j = 0; j < locations.length; j++) {
+				System.out.print(locations[j] + " ");
 			}
 
 			System.out.println();
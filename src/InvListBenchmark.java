@@ -0,0 +1,157 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ * A microbenchmark that compares strategies for intersecting inverted lists.
+ * It builds synthetic posting lists whose document frequencies follow a
+ * Zipfian distribution, and then intersects a rare term with common terms,
+ * the way that Qry.docIteratorHasMatchAll does for #AND and #NEAR/n. Three
+ * strategies are timed:
+ * <ul>
+ * <li>linear: advance one posting at a time (the original QryIop behavior);
+ * <li>gallop: InvList.findDocid without skip pointers;
+ * <li>skip: InvList.findDocid with skip pointers.
+ * </ul>
+ * <p>
+ * Usage: java InvListBenchmark [numDocs [numTerms [skipInterval]]]
+ * </p>
+ */
+public class InvListBenchmark {
+
+	private static final int TRIALS = 100;
+
+	/**
+	 * @param args
+	 *            Optional: the number of documents, the number of terms, and
+	 *            the skip interval.
+	 */
+	public static void main(String[] args) {
+
+		int numDocs = (args.length > 0) ? Integer.parseInt(args[0]) : 20000000;
+		int numTerms = (args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+		int skipInterval = (args.length > 2) ? Integer.parseInt(args[2]) : 64;
+
+		// Zipf: the term at rank r occurs in about numDocs / (2 r) documents.
+
+		Random random = new Random(1);
+		int[] ranks = { 1, 2, 5, 10, 50, numTerms / 2, numTerms };
+		InvList[] lists = new InvList[ranks.length];
+
+		for (int i = 0; i < ranks.length; i++) {
+			double p = 0.5 / ranks[i];
+			lists[i] = syntheticList(numDocs, p, random);
+			System.out.println("rank " + ranks[i] + ": df " + lists[i].df);
+		}
+
+		// Intersect the rarest list with each of the more frequent lists.
+
+		InvList rare = lists[lists.length - 1];
+
+		// Warm up the JIT so that the first strategy timed isn't penalized.
+
+		for (int trial = 0; trial < TRIALS; trial++) {
+			for (int i = 0; i < lists.length - 1; i++) {
+				intersect(rare, lists[i], true);
+				intersect(rare, lists[i], false);
+			}
+		}
+
+		for (int i = 0; i < lists.length - 1; i++) {
+			InvList common = lists[i];
+
+			System.out.println("\nrare df " + rare.df + " x common df "
+					+ common.df);
+
+			for (String strategy : new String[] { "linear", "gallop", "skip" }) {
+
+				InvList.setSkipInterval(strategy.equals("skip") ? skipInterval : 0);
+
+				int matches = 0;
+				Timer timer = new Timer();
+				timer.start();
+
+				for (int trial = 0; trial < TRIALS; trial++)
+					matches = intersect(rare, common, strategy.equals("linear"));
+
+				timer.stop();
+				System.out.println("  " + strategy + ": " + matches
+						+ " matches, " + timer + " for " + TRIALS + " trials");
+			}
+		}
+
+		InvList.setSkipInterval(0);
+	}
+
+	/**
+	 * Intersect two inverted lists, leapfrogging between them the way that
+	 * Qry.docIteratorHasMatchAll does.
+	 *
+	 * @return The number of documents in both lists.
+	 */
+	private static int intersect(InvList a, InvList b, boolean linear) {
+
+		int matches = 0;
+		int i = 0;
+		int j = 0;
+
+		while ((i < a.df) && (j < b.df)) {
+			int docid = a.getDocid(i);
+
+			j = linear ? linearFind(b, j, docid) : b.findDocid(j, docid);
+
+			if (j >= b.df)
+				break;
+
+			if (b.getDocid(j) == docid) {
+				matches++;
+				i++;
+			} else {
+				i = linear ? linearFind(a, i, b.getDocid(j)) : a.findDocid(i,
+						b.getDocid(j));
+			}
+		}
+
+		return matches;
+	}
+
+	/**
+	 * The original QryIop advance: one posting at a time.
+	 */
+	private static int linearFind(InvList list, int from, int docid) {
+		while ((from < list.df) && (list.getDocid(from) < docid))
+			from++;
+		return from;
+	}
+
+	/**
+	 * Build an inverted list in which each document occurs with probability
+	 * p. Every posting has a single position.
+	 */
+	private static InvList syntheticList(int numDocs, double p, Random random) {
+
+		InvList list = new InvList("body");
+		int[] location = { 0 };
+
+		// Sample the gaps between postings geometrically, so that building
+		// rare lists doesn't cost O(numDocs).
+
+		double logq = Math.log(1.0 - p);
+		int docid = -1;
+
+		while (true) {
+			double u = 1.0 - random.nextDouble();
+			long gap = (p >= 1.0) ? 1 : 1 + (long) (Math.log(u) / logq);
+
+			if (docid + gap >= numDocs)
+				break;
+
+			docid += (int) gap;
+			location[0] = random.nextInt(100);
+			list.appendPosting(docid, location, 1);
+		}
+
+		return list;
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ * InvListCache keeps recently used term inverted lists in memory so that
+ * terms that occur in many queries (e.g., query intents, expanded queries,
+ * and learning-to-rank feature passes) are read from Lucene just once.
+ * <p>
+ * Inverted lists are keyed by index path, field, and (stemmed) term. The
+ * cache has a byte budget; when it is exceeded, the least recently used
+ * inverted lists are evicted. The cache is disabled until setCapacity is
+ * called with a positive budget. Cached inverted lists are shared by query
+ * operators, so they must not be modified.
+ * </p>
+ */
+public class InvListCache {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The byte budget, or 0 if the cache is disabled.
+	 */
+	private static long capacity = 0;
+
+	/**
+	 * The approximate number of bytes used by the cached inverted lists.
+	 */
+	private static long size = 0;
+
+	private static long hits = 0;
+	private static long misses = 0;
+	private static long evictions = 0;
+
+	/**
+	 * Cached inverted lists, in least-recently-used order.
+	 */
+	private static LinkedHashMap<String, InvList> invLists = new LinkedHashMap<String, InvList>(
+			16, 0.75f, true);
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Get the inverted list of a term in an index, from the cache if
+	 * possible, otherwise from the index.
+	 *
+	 * @param index
+	 *            The index.
+	 * @param termString
+	 *            The processed (stemmed, lower-cased, etc) term string.
+	 * @param fieldString
+	 *            The field that the term occurs in.
+	 * @return The inverted list.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public static InvList get(IndexContext index, String termString,
+			String fieldString) throws IOException {
+
+		if (InvListCache.capacity <= 0) {
+			return new InvList(index, termString, fieldString);
+		}
+
+		String key = index.getIndexPath() + "\0" + fieldString + "\0"
+				+ termString;
+		InvList invList;
+
+		synchronized (InvListCache.class) {
+			invList = InvListCache.invLists.get(key);
+
+			if (invList != null) {
+				InvListCache.hits++;
+				return invList;
+			}
+
+			InvListCache.misses++;
+		}
+
+		// Read the inverted list without holding the lock, so that other
+		// threads can use the cache meanwhile.
+
+		invList = new InvList(index, termString, fieldString);
+		long invListSize = invList.sizeInBytes();
+
+		if (invListSize > InvListCache.capacity) {
+			return invList; // Too large to cache.
+		}
+
+		synchronized (InvListCache.class) {
+			if (InvListCache.invLists.put(key, invList) == null) {
+				InvListCache.size += invListSize;
+			}
+
+			// Evict the least recently used inverted lists.
+
+			Iterator<InvList> lru = InvListCache.invLists.values().iterator();
+
+			while ((InvListCache.size > InvListCache.capacity) && lru.hasNext()) {
+				InvList evicted = lru.next();
+				InvListCache.size -= evicted.sizeInBytes();
+				InvListCache.evictions++;
+				lru.remove();
+			}
+		}
+
+		return invList;
+	}
+
+	/**
+	 * Get a summary of cache activity, e.g., for logging at the end of a
+	 * run.
+	 *
+	 * @return A description of the cache hits, misses, and size.
+	 */
+	public static synchronized String getStatistics() {
+		return "InvList cache:  " + InvListCache.hits + " hits, "
+				+ InvListCache.misses + " misses, " + InvListCache.evictions
+				+ " evictions, " + InvListCache.invLists.size()
+				+ " lists, " + (InvListCache.size / (1024L * 1024L)) + " MB";
+	}
+
+	/**
+	 * Is the cache enabled?
+	 *
+	 * @return True if the cache has a positive byte budget.
+	 */
+	public static synchronized boolean isEnabled() {
+		return (InvListCache.capacity > 0);
+	}
+
+	/**
+	 * Set the byte budget of the cache. Inverted lists are evicted if the
+	 * cache is larger than the new budget.
+	 *
+	 * @param bytes
+	 *            The byte budget, or 0 to disable the cache.
+	 */
+	public static synchronized void setCapacity(long bytes) {
+		InvListCache.capacity = Math.max(0, bytes);
+
+		Iterator<InvList> lru = InvListCache.invLists.values().iterator();
+
+		while ((InvListCache.size > InvListCache.capacity) && lru.hasNext()) {
+			InvListCache.size -= lru.next().sizeInBytes();
+			InvListCache.evictions++;
+			lru.remove();
+		}
+	}
+}
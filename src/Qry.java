@@ -84,6 +84,11 @@ public abstract class Qry {
 	 */
 	protected ArrayList<Qry> args = new ArrayList<Qry>();
 
+	/**
+	 * The index that the query operator was initialized for.
+	 */
+	protected IndexContext index = null;
+
 	/**
 	 * The string to use when the query is displayed. Some query operators
 	 * (e.g., QrySopAnd) may be represented by more than one name (e.g.,
@@ -402,15 +407,33 @@ public abstract class Qry {
 	}
 
 	/**
-	 * Initialize the query operator (and its arguments), including any internal
-	 * iterators; this method must be called before iteration can begin.
+	 * Initialize the query operator (and its arguments) for the current index
+	 * (see Idx), including any internal iterators; this method must be called
+	 * before iteration can begin.
+	 * 
+	 * @param r
+	 *            A retrieval model that guides initialization
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public void initialize(RetrievalModel r) throws IOException {
+		this.initialize(r, Idx.getCurrentContext());
+	}
+
+	/**
+	 * Initialize the query operator (and its arguments) for an index,
+	 * including any internal iterators; this method must be called before
+	 * iteration can begin.
 	 * 
 	 * @param r
 	 *            A retrieval model that guides initialization
+	 * @param index
+	 *            The index to search.
 	 * @throws IOException
 	 *             Error accessing the Lucene index.
 	 */
-	public abstract void initialize(RetrievalModel r) throws IOException;
+	public abstract void initialize(RetrievalModel r, IndexContext index)
+			throws IOException;
 
 	/**
 	 * Removes an argument from the list of query operator arguments.
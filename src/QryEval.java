@@ -8,6 +8,7 @@ import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
 
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
@@ -63,8 +64,17 @@ public class QryEval {
 
 		// Open the index and initialize the retrieval model.
 
+		initializeEvaluationOptions(parameters);
 		Idx.open(parameters.get("indexPath"));
 
+		// Federated search may use more indexes.
+
+		for (String indexPath : getFederatedIndexPaths(parameters)) {
+			if (Idx.getContext(indexPath) == null) {
+				Idx.open(indexPath);
+			}
+		}
+
 		String algorithm = parameters.get("retrievalAlgorithm");
 		if ((algorithm != null) && (algorithm.equals("letor"))) {
 			processLToR(parameters);
@@ -81,6 +91,10 @@ public class QryEval {
 		}
 		// Clean up.
 
+		if (InvListCache.isEnabled()) {
+			System.out.println(InvListCache.getStatistics());
+		}
+
 		timer.stop();
 		System.out.println("Time:  " + timer);
 	}
@@ -93,7 +107,7 @@ public class QryEval {
 	 * @throws IOException
 	 *             Error accessing the Lucene index.
 	 */
-	private static RetrievalModel initializeRetrievalModel(Map<String, String> parameters) throws IOException {
+	static RetrievalModel initializeRetrievalModel(Map<String, String> parameters) throws IOException {
 
 		RetrievalModel model = null;
 		String modelString = parameters.get("retrievalAlgorithm").toLowerCase();
@@ -107,10 +121,17 @@ public class QryEval {
 			String b = parameters.get("BM25:b");
 			String k_3 = parameters.get("BM25:k_3");
 			model = new RetrievalModelBM25(k_1, b, k_3);
+			if (parameters.containsKey("BM25:pruning")) {
+				((RetrievalModelBM25) model).setPruning(
+						RetrievalModelBM25.Pruning.valueOf(parameters.get("BM25:pruning").toUpperCase()));
+			}
 		} else if (modelString.equals("indri")) {
 			String mu = parameters.get("Indri:mu");
 			String lambda = parameters.get("Indri:lambda");
 			model = new RetrievalModelIndri(mu, lambda);
+			if (parameters.containsKey("Indri:logSpace")) {
+				((RetrievalModelIndri) model).setLogSpace(Boolean.parseBoolean(parameters.get("Indri:logSpace")));
+			}
 		} else {
 			throw new IllegalArgumentException("Unknown retrieval model " + parameters.get("retrievalAlgorithm"));
 		}
@@ -118,6 +139,52 @@ public class QryEval {
 		return model;
 	}
 
+	/**
+	 * Configure optional query evaluation strategies using parameters from the
+	 * parameter file. All of them are off by default.
+	 * 
+	 * @param parameters
+	 *            The parameters read from the parameter file.
+	 */
+	static void initializeEvaluationOptions(Map<String, String> parameters) {
+
+		// Term operators can iterate over Lucene's postings directly instead
+		// of copying each inverted list into memory first.
+
+		if (parameters.containsKey("postings:streaming")) {
+			QryIopTerm.setStreaming(Boolean.parseBoolean(parameters.get("postings:streaming")));
+		}
+
+		// Inverted lists can have skip pointers every n postings, which
+		// speeds up long advances during #AND and #NEAR/n intersections.
+
+		if (parameters.containsKey("postings:skipInterval")) {
+			InvList.setSkipInterval(Integer.parseInt(parameters.get("postings:skipInterval")));
+		}
+
+		// Term inverted lists can be cached across queries, within a budget
+		// of n megabytes.
+
+		if (parameters.containsKey("postings:cacheMB")) {
+			InvListCache.setCapacity(Long.parseLong(parameters.get("postings:cacheMB")) * 1024L * 1024L);
+		}
+
+		// Document lengths can be read from Lucene's norms (docvalues), or
+		// copied into arrays (array) or a memory-mapped file (mmap) when the
+		// index is opened.
+
+		if (parameters.containsKey("idx:docLengths")) {
+			DocLengthStore.setStorage(DocLengthStore.Storage.valueOf(parameters.get("idx:docLengths").toUpperCase()));
+		}
+
+		// External ids and internal docids can be mapped by a table that is
+		// stored next to the index, instead of by Lucene lookups.
+
+		if (parameters.containsKey("idx:externalIdTable")) {
+			Idx.setExternalIdTables(Boolean.parseBoolean(parameters.get("idx:externalIdTable")));
+		}
+	}
+
 	/**
 	 * Print a message indicating the amount of memory used. The caller can indicate
 	 * whether garbage collection should be performed, which slows the program but
@@ -149,6 +216,49 @@ public class QryEval {
 	 *             Error accessing the index
 	 */
 	static ScoreList processQuery(String qString, RetrievalModel model) throws IOException {
+		return processQuery(qString, model, 0);
+	}
+
+	/**
+	 * Process one query when only the top k documents are needed. The results
+	 * contain just the top k documents (and any documents tied with the k'th
+	 * document), unsorted. Retrieval models that support dynamic pruning also
+	 * skip documents that can't be in the top k.
+	 * 
+	 * @param qString
+	 *            A string that contains a query.
+	 * @param model
+	 *            The retrieval model determines how matching and scoring is done.
+	 * @param k
+	 *            The number of documents needed, or 0 for all matching
+	 *            documents.
+	 * @return Search results
+	 * @throws IOException
+	 *             Error accessing the index
+	 */
+	static ScoreList processQuery(String qString, RetrievalModel model, int k) throws IOException {
+		return processQuery(qString, model, k, Idx.getCurrentContext());
+	}
+
+	/**
+	 * Process one query against a particular index, which need not be the
+	 * current index.
+	 * 
+	 * @param qString
+	 *            A string that contains a query.
+	 * @param model
+	 *            The retrieval model determines how matching and scoring is done.
+	 * @param k
+	 *            The number of documents needed, or 0 for all matching
+	 *            documents.
+	 * @param index
+	 *            The index to search.
+	 * @return Search results
+	 * @throws IOException
+	 *             Error accessing the index
+	 */
+	static ScoreList processQuery(String qString, RetrievalModel model, int k, IndexContext index)
+			throws IOException {
 
 		String defaultOp = model.defaultQrySopName();
 		qString = defaultOp + "(" + qString + ")";
@@ -160,13 +270,37 @@ public class QryEval {
 
 		if (q != null) {
 
-			ScoreList r = new ScoreList();
+			ScoreList r = new ScoreList(index);
 
 			if (q.args.size() > 0) { // Ignore empty queries
 
-				q.initialize(model);
+				q.initialize(model, index);
+
+				if ((k > 0) && (model instanceof RetrievalModelBM25)
+						&& (((RetrievalModelBM25) model).getPruning() != RetrievalModelBM25.Pruning.NONE)
+						&& (q instanceof QrySopSum) && ((QrySopSum) q).canPrune()) {
+					return ((QrySopSum) q).getTopKBM25(model, k);
+				}
+
+				// A deadline stops evaluation early, with the documents
+				// that were scored before it.
+
+				Deadline deadline = Deadline.getCurrent();
+
+				if (k > 0) {
+					TopKCollector topK = new TopKCollector(k, index);
+
+					while (q.docIteratorHasMatch(model) && ((deadline == null) || !deadline.isReached())) {
+						int docid = q.docIteratorGetMatch();
+						double score = ((QrySop) q).getScore(model);
+						topK.add(docid, score);
+						q.docIteratorAdvancePast(docid);
+					}
+
+					return topK.getScoreList();
+				}
 
-				while (q.docIteratorHasMatch(model)) {
+				while (q.docIteratorHasMatch(model) && ((deadline == null) || !deadline.isReached())) {
 					int docid = q.docIteratorGetMatch();
 					double score = ((QrySop) q).getScore(model);
 					r.add(docid, score);
@@ -190,6 +324,8 @@ public class QryEval {
 			Map<String, String> parameters) throws Exception {
 
 		BufferedReader input = null;
+		ExecutorService executor = null;
+		FederatedSearch federated = null;
 
 		try {
 			String qLine = null;
@@ -220,73 +356,194 @@ public class QryEval {
 				writerNewQry = new BufferedWriter(new FileWriter(fileNewQry));
 			}
 
+			// A query may be evaluated against several indexes at once.
+
+			if (parameters.containsKey("federated:indexPaths")) {
+				if ("true".equals(parameters.get("fb")) || "true".equals(parameters.get("diversity"))) {
+					throw new IllegalArgumentException("Federated search doesn't support fb or diversity.");
+				}
+
+				List<IndexContext> shards = new ArrayList<IndexContext>();
+
+				for (String indexPath : getFederatedIndexPaths(parameters)) {
+					shards.add(Idx.getContext(indexPath));
+				}
+
+				FederatedSearch.Normalization normalization = FederatedSearch.Normalization.NONE;
+
+				if (parameters.containsKey("federated:normalization")) {
+					normalization = FederatedSearch.Normalization
+							.valueOf(parameters.get("federated:normalization").toUpperCase());
+				}
+
+				federated = new FederatedSearch(shards, normalization);
+				model.setCollectionStats(federated.getCollectionStats());
+			}
+
+			final FederatedSearch federatedSearch = federated;
+
+			// Queries are independent, so they may be evaluated by several
+			// threads.  Their results are written in query file order.
+
+			final Map<String, ScoreList> initialRankings = qryId_ScoreList;
+			final boolean initialNeedScale = needScale;
+			List<Future<String[]>> pending = new ArrayList<Future<String[]>>();
+
+			if (parameters.containsKey("queries:threads")) {
+				int threads = Integer.parseInt(parameters.get("queries:threads"));
+				boolean virtual = parameters.containsKey("queries:virtualThreads")
+						&& Boolean.parseBoolean(parameters.get("queries:virtualThreads"));
+
+				if (threads > 1) {
+					executor = newQueryExecutor(threads, virtual);
+				}
+			}
+
 			while ((qLine = input.readLine()) != null) {
-				int d = qLine.indexOf(':');
+				final String line = qLine;
+				Callable<String[]> task = new Callable<String[]>() {
+					public String[] call() throws Exception {
+						return processQueryLine(line, model, parameters, initialRankings, initialNeedScale, resultLen,
+								federatedSearch);
+					}
+				};
 
-				if (d < 0) {
-					throw new IllegalArgumentException("Syntax error:  Missing ':' in query line.");
+				if (executor == null) {
+					writeQueryOutput(task.call(), writer, writerNewQry);
+				} else {
+					pending.add(executor.submit(task));
 				}
+			}
 
-				printMemoryUsage(false);
+			for (Future<String[]> result : pending) {
+				try {
+					writeQueryOutput(result.get(), writer, writerNewQry);
+				} catch (ExecutionException ex) {
+					if (ex.getCause() instanceof Exception) {
+						throw (Exception) ex.getCause();
+					}
+					throw new RuntimeException(ex.getCause());
+				}
+			}
 
-				String qid = qLine.substring(0, d);
-				String query = qLine.substring(d + 1);
+			writer.flush();
+			writer.close();
+			if (parameters.containsKey("fbExpansionQueryFile")) {
+				writerNewQry.flush();
+				writerNewQry.close();
+			}
 
-				System.out.println("Query " + qLine);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+			if (federated != null) {
+				federated.close();
+			}
+			input.close();
+		}
+	}
+
+	/**
+	 * Process one line of the query file. Results are returned, rather than
+	 * written, so that queries can be processed in parallel and their results
+	 * written in query file order.
+	 * 
+	 * @param qLine
+	 *            A line of the query file, "qid:query".
+	 * @param model
+	 *            The retrieval model, or null if initial rankings are read
+	 *            from a file.
+	 * @param parameters
+	 *            The parameters read from the parameter file.
+	 * @param qryId_ScoreList
+	 *            Initial rankings read from a file, by qid.
+	 * @param needScale
+	 *            True if diversity scores must be scaled.
+	 * @param resultLen
+	 *            The number of documents to write.
+	 * @param federated
+	 *            The indexes to search, or null to search the current index.
+	 * @return The query's lines of the TREC output file, and its line of the
+	 *         expansion query file (or null).
+	 * @throws Exception
+	 *             Error accessing the index, or a malformed query.
+	 */
+	private static String[] processQueryLine(String qLine, RetrievalModel model, Map<String, String> parameters,
+			Map<String, ScoreList> qryId_ScoreList, boolean needScale, String resultLen, FederatedSearch federated)
+			throws Exception {
+
+		int d = qLine.indexOf(':');
+
+		if (d < 0) {
+			throw new IllegalArgumentException("Syntax error:  Missing ':' in query line.");
+		}
+
+		printMemoryUsage(false);
+
+		String qid = qLine.substring(0, d);
+		String query = qLine.substring(d + 1);
+
+		System.out.println("Query " + qLine);
 
-				ScoreList r = null;
-				ScoreList finalRanking = null;
-				if(parameters.containsKey("diversity") && parameters.get("diversity").equals("true")) {
-					if(!(parameters.containsKey("diversity:maxInputRankingsLength") &&
-							parameters.containsKey("diversity:maxResultRankingLength") &&
-							parameters.containsKey("diversity:algorithm") &&
+		ScoreList r = null;
+		ScoreList finalRanking = null;
+		String expansion = null;
+		StringWriter results = new StringWriter();
+		BufferedWriter writer = new BufferedWriter(results);
+		if(parameters.containsKey("diversity") && parameters.get("diversity").equals("true")) {
+			if(!(parameters.containsKey("diversity:maxInputRankingsLength") &&
+					parameters.containsKey("diversity:maxResultRankingLength") &&
+					parameters.containsKey("diversity:algorithm") &&
 //							parameters.containsKey("diversity:intentsFile") &&
-							parameters.containsKey("diversity:lambda"))) {
-						throw new IllegalArgumentException("Required parameters were missing from the parameter file.");
-					}
-					
-					ScoreList rOriginal = null;
-					List<ScoreList> rIntents = null;
-					int maxInputRankingLength = Integer.parseInt(parameters.get("diversity:maxInputRankingsLength"));
-					
-					if(parameters.containsKey("diversity:initialRankingFile")) {
-						rOriginal = qryId_ScoreList.get(qid);
-						rIntents = getInitialIntentRanking(parameters, qryId_ScoreList,  qid);
-						
-						int minLength = Math.min(rOriginal.size(), maxInputRankingLength);
-						rOriginal.truncate(minLength);
-						for(int i = 0; i < rIntents.size(); i++) {
-							rIntents.get(i).truncate(minLength);
-						}
-					} else {
-						rOriginal = processQuery(query, model);
-						rOriginal.sort();	
-						int minLength = Math.min(rOriginal.size(), maxInputRankingLength);
-						rOriginal.truncate(minLength);
-						rIntents = processQueryIntentFile(parameters, model, qid, minLength);
-						if((parameters.get("retrievalAlgorithm").equals("BM25"))) {
-							needScale = true;
-						}
-					}				
-					
-					int rOrigianlSize = rOriginal.size();
-					// Truncate intent query ranking
+					parameters.containsKey("diversity:lambda"))) {
+				throw new IllegalArgumentException("Required parameters were missing from the parameter file.");
+			}
+			
+			ScoreList rOriginal = null;
+			List<ScoreList> rIntents = null;
+			int maxInputRankingLength = Integer.parseInt(parameters.get("diversity:maxInputRankingsLength"));
+			
+			if(parameters.containsKey("diversity:initialRankingFile")) {
+				rOriginal = qryId_ScoreList.get(qid);
+				rIntents = getInitialIntentRanking(parameters, qryId_ScoreList,  qid);
+				
+				int minLength = Math.min(rOriginal.size(), maxInputRankingLength);
+				rOriginal.truncate(minLength);
+				for(int i = 0; i < rIntents.size(); i++) {
+					rIntents.get(i).truncate(minLength);
+				}
+			} else {
+				rOriginal = processQuery(query, model, maxInputRankingLength);
+				rOriginal.sort();	
+				int minLength = Math.min(rOriginal.size(), maxInputRankingLength);
+				rOriginal.truncate(minLength);
+				rIntents = processQueryIntentFile(parameters, model, qid, minLength);
+				if((parameters.get("retrievalAlgorithm").equals("BM25"))) {
+					needScale = true;
+				}
+			}				
+			
+			int rOrigianlSize = rOriginal.size();
+			// Truncate intent query ranking
 //					for(int i = 0; i < rIntents.size(); i++) {
 //						rIntents.get(i).truncate(rOrigianlSize);
 //					}
-					
-						
-					// Scale
-					if(needScale) {
-						double maxScore = maxScoreSum(rOriginal, rIntents);
-						scaleScoreList(rOriginal, maxScore);
-						
-						for(int i = 0; i < rIntents.size(); i++) {
-							scaleScoreList(rIntents.get(i), maxScore);
-						}
-					
-					}
-					
+			
+				
+			// Scale
+			if(needScale) {
+				double maxScore = maxScoreSum(rOriginal, rIntents);
+				scaleScoreList(rOriginal, maxScore);
+				
+				for(int i = 0; i < rIntents.size(); i++) {
+					scaleScoreList(rIntents.get(i), maxScore);
+				}
+			
+			}
+			
 //					System.out.println("After scaling, the score is");
 //					for(int i = 0; i < rOriginal.size(); i++) {
 //						int docid = rOriginal.getDocid(i);
@@ -300,73 +557,123 @@ public class QryEval {
 //						}
 //						System.out.println();
 //					}
-					
-					// Using xQuad to rerank
-					if(parameters.get("diversity:algorithm").equals("xQuAD")) {
-						finalRanking = xQuAD(rOriginal, rIntents, parameters);
-					}
-					
-					if(parameters.get("diversity:algorithm").equals("PM2")) {
-						finalRanking = PM2(rOriginal, rIntents, parameters);
-					}
-					finalRanking.sort();
-				} 
-				else if((parameters.containsKey("fb") && parameters.get("fb").equals("true"))){
-					if (!(parameters.containsKey("fbDocs") && parameters.containsKey("fbTerms")
-							&& parameters.containsKey("fbMu") && parameters.containsKey("fbOrigWeight")
-							&& parameters.containsKey("fbExpansionQueryFile"))) {
-						throw new IllegalArgumentException("Required parameters were missing from the parameter file.");
-					}
+			
+			// Using xQuad to rerank
+			if(parameters.get("diversity:algorithm").equals("xQuAD")) {
+				finalRanking = xQuAD(rOriginal, rIntents, parameters);
+			}
+			
+			if(parameters.get("diversity:algorithm").equals("PM2")) {
+				finalRanking = PM2(rOriginal, rIntents, parameters);
+			}
+			finalRanking.sort();
+		} 
+		else if((parameters.containsKey("fb") && parameters.get("fb").equals("true"))){
+			if (!(parameters.containsKey("fbDocs") && parameters.containsKey("fbTerms")
+					&& parameters.containsKey("fbMu") && parameters.containsKey("fbOrigWeight")
+					&& parameters.containsKey("fbExpansionQueryFile"))) {
+				throw new IllegalArgumentException("Required parameters were missing from the parameter file.");
+			}
 
-					ScoreList rOriginal;
+			ScoreList rOriginal;
 
-					if (parameters.containsKey("fbInitialRankingFile")) {
+			if (parameters.containsKey("fbInitialRankingFile")) {
 
-						rOriginal = qryId_ScoreList.get(qid);
-					} else {
-						rOriginal = processQuery(query, model);
-						rOriginal.sort();
-					}
+				rOriginal = qryId_ScoreList.get(qid);
+			} else {
+				rOriginal = processQuery(query, model, Integer.parseInt(parameters.get("fbDocs")));
+				rOriginal.sort();
+			}
+
+			String qryLearned = expandQuery(rOriginal, parameters);
+
+			System.out.print("The learned query is ");
+			System.out.println(qryLearned);
+
+			// TODO: construct new query
+			String fbOrigWeight = parameters.get("fbOrigWeight");
+			Double fbLearnedWeight = ((Double) 1.0 - Double.parseDouble(fbOrigWeight));
+			String newQry = "#wand(" + fbOrigWeight + " #and(" + query + ") " + fbLearnedWeight.toString() + " "
+					+ qryLearned + ")";
+			System.out.print("The new query is ");
+			System.out.println(newQry);
+			r = processQuery(newQry, model, Integer.parseInt(resultLen));
+			expansion = qid + ": " + qryLearned + "\n";
+		} else if (federated != null) {
+			r = federated.search(query, model, Integer.parseInt(resultLen));
+		} else {
+			r = processQuery(query, model, Integer.parseInt(resultLen));
+		}
+		if(parameters.containsKey("diversity") && parameters.get("diversity").equals("true")) {
+			printResultsDiversity(qid, finalRanking, writer, parameters.get("diversity:maxResultRankingLength"));
+		} 
+		else if (r != null) {
+			r.sort();
+			printResults(qid, r, writer, resultLen);
+			System.out.println();
+		}
 
-					String qryLearned = expandQuery(rOriginal, parameters);
+		writer.flush();
+		return new String[] { results.toString(), expansion };
+	}
 
-					System.out.print("The learned query is ");
-					System.out.println(qryLearned);
+	/**
+	 * Write the output of processQueryLine.
+	 */
+	private static void writeQueryOutput(String[] output, BufferedWriter writer, BufferedWriter writerNewQry)
+			throws IOException {
+		writer.write(output[0]);
 
-					// TODO: construct new query
-					String fbOrigWeight = parameters.get("fbOrigWeight");
-					Double fbLearnedWeight = ((Double) 1.0 - Double.parseDouble(fbOrigWeight));
-					String newQry = "#wand(" + fbOrigWeight + " #and(" + query + ") " + fbLearnedWeight.toString() + " "
-							+ qryLearned + ")";
-					System.out.print("The new query is ");
-					System.out.println(newQry);
-					r = processQuery(newQry, model);
-					writerNewQry.write(qid + ": " + qryLearned + "\n");
-				} else {
-					r = processQuery(query, model);
-				}
-				if(parameters.containsKey("diversity") && parameters.get("diversity").equals("true")) {
-					printResultsDiversity(qid, finalRanking, writer, parameters.get("diversity:maxResultRankingLength"));
-				} 
-				else if (r != null) {
-					r.sort();
-					printResults(qid, r, writer, resultLen);
-					System.out.println();
-				}
-			}
+		if (output[1] != null) {
+			writerNewQry.write(output[1]);
+		}
+	}
 
-			writer.flush();
-			writer.close();
-			if (parameters.containsKey("fbExpansionQueryFile")) {
-				writerNewQry.flush();
-				writerNewQry.close();
+	/**
+	 * Create the thread pool that evaluates queries. Virtual threads are
+	 * used if they are requested and the JVM has them (Java 21 and later).
+	 * 
+	 * @param threads
+	 *            The number of queries to evaluate at once.
+	 * @param virtual
+	 *            True to use virtual threads.
+	 * @return The thread pool.
+	 */
+	static ExecutorService newQueryExecutor(int threads, boolean virtual) {
+		if (virtual) {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+						.getMethod("factory").invoke(builder);
+				return Executors.newFixedThreadPool(threads, factory);
+			} catch (ReflectiveOperationException ex) {
+				System.out.println("Virtual threads aren't available; using platform threads.");
 			}
+		}
 
-		} catch (IOException ex) {
-			ex.printStackTrace();
-		} finally {
-			input.close();
+		return Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Get the indexes that federated search uses, from the comma-separated
+	 * federated:indexPaths parameter.
+	 * 
+	 * @param parameters
+	 *            The parameters read from the parameter file.
+	 * @return The index paths, which are empty if search isn't federated.
+	 */
+	static List<String> getFederatedIndexPaths(Map<String, String> parameters) {
+		List<String> indexPaths = new ArrayList<String>();
+
+		if (parameters.containsKey("federated:indexPaths")) {
+			for (String indexPath : parameters.get("federated:indexPaths").split(",")) {
+				if (indexPath.trim().length() > 0) {
+					indexPaths.add(indexPath.trim());
+				}
+			}
 		}
+
+		return indexPaths;
 	}
 	
 	/**
@@ -423,7 +730,7 @@ public class QryEval {
 				int docId = rOriginal.getDocid(j);
 				double firstTerm = lambda * qt[i_star] * currentIntent.getScore(docId);
 				double secondTermTmp = 0.0;
-				String externalDocId = Idx.getExternalDocid(docId);
+//				String externalDocId = Idx.getExternalDocid(docId);
 //				if(externalDocId.equals("clueweb09-enwp03-28-01117")) {
 //					System.out.println("debugging...");
 //				}
@@ -511,7 +818,7 @@ public class QryEval {
 			for(int i = 0; i < originalLength; i++) {
 				double relevance = (1.0 - lambda) * rOriginal.getDocidScore(i);
 				int docId = rOriginal.getDocid(i);
-				String externalId = Idx.getExternalDocid(docId);
+//				String externalId = Idx.getExternalDocid(docId);
 				
 //				if(externalId.equals(("clueweb09-enwp01-22-00778"))) {
 //					System.out.println("start debuggin in XQuaD");
@@ -527,9 +834,9 @@ public class QryEval {
 					
 					double Pq_i_d = rIntent.getScore(docId);
 					
-					if(externalId.equals(("clueweb09-enwp01-22-00778"))) {
-						System.out.println("Pq_i_d is" + Pq_i_d);
-					}
+//					if(externalId.equals(("clueweb09-enwp01-22-00778"))) {
+//						System.out.println("Pq_i_d is" + Pq_i_d);
+//					}
 					
 					double diversityCoverage = 1.0;
 					for(int finalIndex = 0; finalIndex < finalRank.size(); finalIndex++) {
@@ -556,9 +863,9 @@ public class QryEval {
 				
 				double diversity = lambda * diversityTmp;
 				double newScore = relevance + diversity;
-				if(externalId.equals(("clueweb09-enwp01-22-00778"))) {
-					System.out.println("newScore is" + newScore);
-				}
+//				if(externalId.equals(("clueweb09-enwp01-22-00778"))) {
+//					System.out.println("newScore is" + newScore);
+//				}
 				
 				if(newScore > maxScore) {
 					maxScore = newScore;
@@ -635,10 +942,10 @@ public class QryEval {
 			int internalId = Idx.getInternalDocid(externalId);
 
 			if (qryId_ScoreList.containsKey(qidStr)) {
-				qryId_ScoreList.get(qidStr).add(internalId, score);
+				qryId_ScoreList.get(qidStr).add(internalId, externalId, score);
 			} else {
 				ScoreList rTmp = new ScoreList();
-				rTmp.add(internalId, score);
+				rTmp.add(internalId, externalId, score);
 				qryId_ScoreList.put(qidStr, rTmp);
 			}
 		}
@@ -744,7 +1051,7 @@ public class QryEval {
 				
 				
 //				int maxInputRankingLength = Integer.parseInt(parameters.get("diversity:maxInputRankingsLength"));
-				rIntentAll = processQuery(query, model);
+				rIntentAll = processQuery(query, model, minLength);
 				rIntentAll.sort();
 				
 				rIntentAll.truncate(minLength);
@@ -785,10 +1092,10 @@ public class QryEval {
 			int internalId = Idx.getInternalDocid(externalId);
 
 			if (qryId_ScoreList.containsKey(qidStr)) {
-				qryId_ScoreList.get(qidStr).add(internalId, score);
+				qryId_ScoreList.get(qidStr).add(internalId, externalId, score);
 			} else {
 				ScoreList rTmp = new ScoreList();
-				rTmp.add(internalId, score);
+				rTmp.add(internalId, externalId, score);
 				qryId_ScoreList.put(qidStr, rTmp);
 			}
 		}
@@ -856,9 +1163,6 @@ public class QryEval {
 				} else {
 					tf = (double) terms.stemFreq(index);
 				}
-				docLen = Idx.getFieldLength("body", docId);
-				corpusLen = (double) Idx.getSumOfFieldLengths("body");
-
 				double ctf = termList.get(term);
 				double pMLE = ctf / corpusLen;
 				double idf = Math.log(1.0 / pMLE);
@@ -968,7 +1272,7 @@ public class QryEval {
 			List<String> target = new ArrayList<>();
 			
 			ScoreList r = null;
-			r = processQuery(query, BM25Model);
+			r = processQuery(query, BM25Model, 100);
 			r.sort();
 			
 			int rankDocNum = Math.min(100, r.size());
@@ -978,7 +1282,7 @@ public class QryEval {
 				double[] feature = new double[19];
 				int[] featureExistDoc = new int[19];
 				Arrays.fill(feature, Double.MAX_VALUE);
-				String externalIdDoc = Idx.getExternalDocid(r.getDocid(i));
+				String externalIdDoc = r.getExternalDocid(i);
 				feature = calculateFeatures(featureOn, externalIdDoc, queryStems, BM25Model, IndriModel, featureExistDoc);
 				
 				if (feature == null) {
@@ -1361,13 +1665,11 @@ public class QryEval {
 			return Double.NaN;
 		}
 		RetrievalModelBM25 BM25 = (RetrievalModelBM25) BM25Model;
-		double k_1 = BM25.getK_1();
-		double b = BM25.getB();
 		double k_3 = BM25.getK_3();
-		double N = (double) Idx.getNumDocs();
-		double docCount = (double) Idx.getDocCount(field);
-		double docLenD = (double) Idx.getFieldLength(field, docId);
-		double totalDocLen = (double) Idx.getSumOfFieldLengths(field);
+		FieldStats stats = Idx.getFieldStats(field);
+		double N = (double) stats.numDocs;
+		double lengthNorm = BM25.getLengthNorm(BM25.getLengthNorms(stats), stats,
+				Idx.getFieldLength(field, docId));
 		for (int i = 0; i < queryStems.size(); i++) {
 			int indexOfTerm = terms.indexOfStem(queryStems.get(i));
 			if (indexOfTerm < 0) {
@@ -1376,9 +1678,8 @@ public class QryEval {
 			double qtf = 1.0;
 			double tf = (double) terms.stemFreq(indexOfTerm);
 			double df = (double) terms.stemDf(indexOfTerm);
-			double avgDocLen = totalDocLen / docCount;
 			double idf = Math.max(0, Math.log((N - df + 0.5) / (df + 0.5)));
-			double termWeight = tf / (tf + k_1 * ((1 - b) + b * docLenD / avgDocLen));
+			double termWeight = tf / (tf + lengthNorm);
 			double queryWeight = (k_3 + 1.0) * qtf / (k_3 + qtf);
 			double termScore = idf * termWeight * queryWeight;
 			featureScore = featureScore + termScore;
@@ -1395,11 +1696,11 @@ public class QryEval {
 		RetrievalModelIndri Indri = (RetrievalModelIndri) IndriModel;
 		double lambda = Indri.getLambda();
 		double qtfMax = Double.MIN_VALUE;
-		double totalDocLen = (double)Idx.getSumOfFieldLengths("body");
-		double docCount = (double)Idx.getDocCount("body");
-		double avgDocLen = totalDocLen / docCount;
+		FieldStats stats = Idx.getFieldStats("body");
+		double totalDocLen = (double)stats.sumOfFieldLengths;
+		double avgDocLen = stats.avgFieldLength;
 		double docLen = (double)Idx.getFieldLength("body", docId);
-		double N = (double)Idx.getNumDocs();
+		double N = (double)stats.numDocs;
 		// Get qtfMax	
 		for(int i = 0; i < queryStems.size(); i++) {
 			int indexOfTerm = terms.indexOfStem(queryStems.get(i));
@@ -1436,22 +1737,14 @@ public class QryEval {
 		TermVector termsTitle = new TermVector(docId, "title");
 		TermVector termsUrl = new TermVector(docId, "url");
 		TermVector termsInlink = new TermVector(docId, "inlink");
-		double totalDocLenBody = Idx.getSumOfFieldLengths("body");
-		double totalDocLenTitle = Idx.getSumOfFieldLengths("title");
-		double totalDocLenUrl = Idx.getSumOfFieldLengths("url");
-		double totalDocLenInlink = Idx.getSumOfFieldLengths("inlink");
-		double docCountBody = (double)Idx.getDocCount("body");
-		double docCountTitle = (double)Idx.getDocCount("title");
-		double docCountUrl = (double)Idx.getDocCount("url");
-		double docCountInlink = (double)Idx.getDocCount("inlink");
 		double docLenBody = (double)Idx.getFieldLength("body", docId);
 		double docLenTitle = (double)Idx.getFieldLength("title", docId);
 		double docLenUrl = (double)Idx.getFieldLength("url", docId);
 		double docLenInlink = (double)Idx.getFieldLength("inlink", docId);
-		double normDocLenBody = docLenBody / (totalDocLenBody / docCountBody);
-		double normDocLenTitle = docLenTitle / (totalDocLenTitle / docCountTitle);
-		double normDocLenUrl = docLenUrl / (totalDocLenUrl / docCountUrl);
-		double normDouLenInlink = docLenInlink / (totalDocLenInlink / docCountInlink);
+		double normDocLenBody = docLenBody / Idx.getFieldStats("body").avgFieldLength;
+		double normDocLenTitle = docLenTitle / Idx.getFieldStats("title").avgFieldLength;
+		double normDocLenUrl = docLenUrl / Idx.getFieldStats("url").avgFieldLength;
+		double normDouLenInlink = docLenInlink / Idx.getFieldStats("inlink").avgFieldLength;
 		double tfBody = 0.0;
 		double tfTitle = 0.0;
 		double tfUrl = 0.0;
@@ -1540,7 +1833,7 @@ public class QryEval {
 		RetrievalModelIndri Indri = (RetrievalModelIndri) IndriModel;
 		double mu = Indri.getMu();
 		double lambda = Indri.getLambda();
-		double lengthTokens = (double) Idx.getSumOfFieldLengths(field);
+		double lengthTokens = (double) Idx.getFieldStats(field).sumOfFieldLengths;
 		double docLen = (double) Idx.getFieldLength(field, docId);
 		boolean TermMatch = false;
 		for (int i = 0; i < queryStems.size(); i++) {
@@ -1680,7 +1973,7 @@ public class QryEval {
 			int temp = Integer.parseInt(reaultLen);
 			int resLen = temp < result.size() ? temp : result.size();
 			for (int i = 0; i < resLen; i++) {
-				writer.write(queryName + " Q0 " + Idx.getExternalDocid(result.getDocid(i)) + " " + (i + 1) + " "
+				writer.write(queryName + " Q0 " + result.getExternalDocid(i) + " " + (i + 1) + " "
 						+ formatter.format(result.getDocidScore(i)) + " fubar\n");
 			}
 			// writer.write("\r\n");
@@ -1703,7 +1996,7 @@ public class QryEval {
 			int temp = Integer.parseInt(resultLen);
 			int resLen = temp < result.size() ? temp : result.size();
 			for (int i = 0; i < resLen; i++) {
-				writer.write(queryName + " Q0 " + Idx.getExternalDocid(result.getDocid(i)) + " " + (i + 1) + " "
+				writer.write(queryName + " Q0 " + result.getExternalDocid(i) + " " + (i + 1) + " "
 						+ formatter.format(result.getDocidScore(i)) + " reference\n");
 			}
 		}
@@ -1756,7 +2049,7 @@ public class QryEval {
 			int temp = Integer.parseInt(reaultLen);
 			int resLen = temp < result.size() ? temp : result.size();
 			for (int i = 0; i < resLen; i++) {
-				writer.write(queryName + " Q0 " + Idx.getExternalDocid(result.getDocid(i)) + " " + (i + 1) + " "
+				writer.write(queryName + " Q0 " + result.getExternalDocid(i) + " " + (i + 1) + " "
 						+ formatter.format(result.getDocidScore(i)) + " yubinletor\n");
 			}
 			// writer.write("\r\n");
@@ -1806,28 +2099,8 @@ public class QryEval {
 	 */
 	private static Map<String, String> readParameterFile(String parameterFileName) throws IOException {
 
-		Map<String, String> parameters = new HashMap<String, String>();
-
-		System.out.println("parameterFileName is " + parameterFileName);
-		File parameterFile = new File(parameterFileName);
-
-		if (!parameterFile.exists()) {
-			System.out.println("param0.txt does not exists");
-		}
-
-		if (!parameterFile.canRead()) {
-			throw new IllegalArgumentException("Can't read " + parameterFileName);
-		}
-
-		Scanner scan = new Scanner(parameterFile);
-		String line = null;
-		do {
-			line = scan.nextLine();
-			String[] pair = line.split("=");
-			parameters.put(pair[0].trim(), pair[1].trim());
-		} while (scan.hasNext());
+		Map<String, String> parameters = readParameters(parameterFileName);
 
-		scan.close();
 		if(parameters.containsKey("diversity") && parameters.get("diversity").equals("true")) {
 			if (!(parameters.containsKey("indexPath") && parameters.containsKey("queryFilePath")
 					&& parameters.containsKey("trecEvalOutputPath"))) {
@@ -1858,4 +2131,42 @@ public class QryEval {
 		return parameters;
 	}
 
+	/**
+	 * Read a parameter file without checking which parameters it has. The
+	 * parameters are returned in a HashMap.
+	 * 
+	 * @param parameterFileName
+	 *            The parameter file.
+	 * @return The parameters, in <key, value> format.
+	 * @throws IOException
+	 *             Error reading the parameter file.
+	 */
+	static Map<String, String> readParameters(String parameterFileName) throws IOException {
+
+		Map<String, String> parameters = new HashMap<String, String>();
+
+		System.out.println("parameterFileName is " + parameterFileName);
+		File parameterFile = new File(parameterFileName);
+
+		if (!parameterFile.exists()) {
+			System.out.println("param0.txt does not exists");
+		}
+
+		if (!parameterFile.canRead()) {
+			throw new IllegalArgumentException("Can't read " + parameterFileName);
+		}
+
+		Scanner scan = new Scanner(parameterFile);
+		String line = null;
+		do {
+			line = scan.nextLine();
+			String[] pair = line.split("=");
+			parameters.put(pair[0].trim(), pair[1].trim());
+		} while (scan.hasNext());
+
+		scan.close();
+
+		return parameters;
+	}
+
 }
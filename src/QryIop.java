@@ -17,7 +17,11 @@ import java.util.*;
  *  and location information are accessed via Qry.docIterator and
  *  QryIop.locIterator.  Corpus-level information, for example, 
  *  document frequency (df) and collection term frequency (ctf), are
- *  available via specific methods (e.g., getDf and getCtf).
+ *  available via specific methods (e.g., getDf and getCtf).  Subclasses
+ *  may provide their own docIterator instead of a cached inverted list
+ *  (e.g., QryIopTerm in streaming mode); they must also provide
+ *  docIteratorGetMatchTf and docIteratorGetMatchPositions, which the
+ *  locIterator is built on.
  *  </p><p>
  *  QryIop operators support iteration over the locations in the
  *  document that Qry.docIteratorHasMatch matches.  The semantics
@@ -63,6 +67,19 @@ public abstract class QryIop extends Qry {
    */
   private int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
 
+  /**
+   *  The decoded positions of the document that the docIterator points
+   *  to now.  Positions are decoded lazily, the first time that the
+   *  locIterator is used for a document, into a buffer that is reused
+   *  for every document.
+   */
+  private int[] locPositions = new int[16];
+
+  /**
+   *  The index of the document whose positions are in locPositions.
+   */
+  private int locPositionsIndex = QryIop.INVALID_ITERATOR_INDEX;
+
   /**
    *  Advance the query operator's internal iterator beyond the
    *  specified document.
@@ -70,11 +87,8 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
-    }
-           
+    this.docIteratorIndex =
+      this.invertedList.findDocid (this.docIteratorIndex, docid + 1);
     this.locIteratorIndex = 0;
   }
 
@@ -85,11 +99,8 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
-    }
-           
+    this.docIteratorIndex =
+      this.invertedList.findDocid (this.docIteratorIndex, docid);
     this.locIteratorIndex = 0;
   }
 
@@ -98,7 +109,7 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -113,12 +124,37 @@ public abstract class QryIop extends Qry {
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the positions in the document that the docIterator points
+   *  to now, or throw an error if the docIterator doesn't point at a
+   *  document.  The array is a buffer that is reused when the docIterator
+   *  advances, so only the first docIteratorGetMatchTf entries are valid,
+   *  and only until the docIterator moves.
+   *  @return The positions, in ascending order.
+   */
+  public int[] docIteratorGetMatchPositions () {
+
+    if (this.locPositionsIndex != this.docIteratorIndex) {
+      int tf = this.invertedList.getTf (this.docIteratorIndex);
+
+      if (this.locPositions.length < tf) {
+        this.locPositions = new int[Math.max (tf, this.locPositions.length * 2)];
+      }
+
+      this.invertedList.getPositions (this.docIteratorIndex, this.locPositions);
+      this.locPositionsIndex = this.docIteratorIndex;
+    }
+
+    return this.locPositions;
+  }
+
+  /**
+   *  Return the term frequency in the document that the docIterator
+   *  points to now, or throw an error if the docIterator doesn't point
+   *  at a document.
+   *  @return The document's term frequency.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int docIteratorGetMatchTf () {
+    return this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -150,6 +186,16 @@ public abstract class QryIop extends Qry {
     return this.invertedList.df;
   }
 
+  /**
+   *  Get the largest term frequency in any document that matches this
+   *  query operator.  It is an error to call this method before the
+   *  object's initialize method is called.
+   *  @return The maximum term frequency.
+   */
+  public int getMaxTf () {
+    return this.invertedList.maxTf;
+  }
+
   /**
    *  Get the field associated with this query operator.
    *  @return The field associated with this query operator.
@@ -170,13 +216,16 @@ public abstract class QryIop extends Qry {
    *  internal iterators; this method must be called before iteration
    *  can begin.
    *  @param r A retrieval model (that is ignored)
+   *  @param index The index to search.
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(RetrievalModel r, IndexContext index) throws IOException {
+
+    this.index = index;
 
     //  Initialize the query arguments (if any).
 
     for (Qry q_i: this.args) {
-      ((QryIop) q_i).initialize (r);
+      ((QryIop) q_i).initialize (r, index);
     }
 
     //  Evaluate the operator.
@@ -185,8 +234,17 @@ public abstract class QryIop extends Qry {
 
     //  Initialize the internal iterators.
 
+    this.docIteratorReset ();
+  }
+
+  /**
+   *  Point the docIterator at the first document of the inverted list
+   *  that evaluate produced.
+   */
+  protected void docIteratorReset () {
     this.docIteratorIndex = 0;
     this.locIteratorIndex = 0;
+    this.locPositionsIndex = QryIop.INVALID_ITERATOR_INDEX;
   }
   
  /**
@@ -203,11 +261,11 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    int tf = this.docIteratorGetMatchTf ();
+    int[] positions = this.docIteratorGetMatchPositions ();
 
     while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
+           (positions[this.locIteratorIndex] <= loc)) {
       locIteratorIndex ++;
     }
   }
@@ -217,8 +275,7 @@ public abstract class QryIop extends Qry {
    *  any possible location.
    */
   public void locIteratorFinish () {
-    this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+    this.locIteratorIndex = this.docIteratorGetMatchTf ();
   }
 
   /**
@@ -229,8 +286,17 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    return this.docIteratorGetMatchPositions ()[this.locIteratorIndex];
+  }
+
+  /**
+   *  Reset the query operator's internal iterator to the first location
+   *  of the document that the docIterator points to now.  Subclasses
+   *  that provide their own docIterator must call this method whenever
+   *  their docIterator moves.
+   */
+  protected void locIteratorReset () {
+    this.locIteratorIndex = 0;
   }
 
   /**
@@ -239,8 +305,7 @@ public abstract class QryIop extends Qry {
    *  @return True if the iterator currently points to a location.
    */
   public boolean locIteratorHasMatch () {
-    return (this.locIteratorIndex <
-            this.invertedList.getTf (this.docIteratorIndex));
+    return (this.locIteratorIndex < this.docIteratorGetMatchTf ());
   }
 
 }
@@ -1,128 +1,104 @@
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
 
-public class QryIopNear extends QryIop {
+public class QryIopNear extends QryIopProximity {
 
 	private int distance = 0;
 
-	static private final int INVALIDLOC = Integer.MIN_VALUE;
-
 	QryIopNear(int distance) {
 		this.distance = distance;
 	}
 
-	@Override
-	protected void evaluate() throws IOException {
-		this.invertedList = new InvList(this.getField());
+	/**
+	 * Find the matches in the document that every argument points to.
+	 *
+	 * @param matches
+	 *            A buffer for the matches.
+	 * @return The number of matches.
+	 */
+	protected int match(int[] matches) {
+		return matchNear(this.positions, this.tfs, this.args.size(), this.distance, this.cursors, matches);
+	}
 
-		if (args.size() == 0) {
-			return;
+	/**
+	 * Find the matches of #NEAR/n in one document with a single forward
+	 * sweep over the arguments' positions. Each argument must occur after
+	 * the previous one, at most distance positions later. The sweep is
+	 * greedy: it extends a match from the earliest unused position of the
+	 * first argument, and when a match is found, every argument moves past
+	 * the position that it used, so a position is used by at most one match.
+	 * A match is reported at the position of the last argument, so matches
+	 * are in ascending order.
+	 *
+	 * @param positions
+	 *            The positions of each argument, in ascending order.
+	 * @param tfs
+	 *            The number of positions of each argument.
+	 * @param argsLen
+	 *            The number of arguments.
+	 * @param distance
+	 *            The largest distance between adjacent arguments.
+	 * @param cursors
+	 *            A buffer for argsLen cursors.
+	 * @param matches
+	 *            A buffer for the matches, which must be as long as the
+	 *            smallest tf.
+	 * @return The number of matches.
+	 */
+	static int matchNear(int[][] positions, int[] tfs, int argsLen, int distance, int[] cursors, int[] matches) {
+
+		if (argsLen == 1) {
+			System.arraycopy(positions[0], 0, matches, 0, tfs[0]);
+			return tfs[0];
 		}
-		
-		//Find documents that contain all terms
-		while (this.docIteratorHasMatchAll(null)) {
-//			System.out.println("while this.docIteratorHasMatchAll(null)");
-
-			int docId_0 = this.args.get(0).docIteratorGetMatch();
-			int docId_1 = this.args.get(1).docIteratorGetMatch();
-
-			String externalId = Idx.getExternalDocid(docId_0);
-
-//			System.out
-//					.printf("The same file is: %d and %d\n", docId_0, docId_1);
-
-			int argsLen = this.args.size();
-
-			List<Integer> positions = new ArrayList<Integer>();
-
-//			if ((externalId.equals("GX230-38-15084879")) || (docId_0 == 4779)) {
-//				System.out.println("Strange");
-//				InvList.DocPosting posting0 = ((QryIop) this.args.get(0))
-//						.docIteratorGetMatchPosting();
-//				InvList.DocPosting posting1 = ((QryIop) this.args.get(1))
-//						.docIteratorGetMatchPosting();
-//
-//				int postLen0 = posting0.positions.size();
-//				int postLen1 = posting1.positions.size();
-//
-//				System.out.println("The locations of posting 0");
-//				System.out.println(posting0.positions.toString());
-//
-//				System.out.println("The locations of posting 1");
-//				System.out.println(posting1.positions.toString());
-//
-//			}
-
-			while (true) {
-				// System.out.println("while true");
-				// QryIop q_left = (QryIop) this.args.get(0);
-				// if (!q_left.locIteratorHasMatch()) {
-				// break;
-				// }
-				//
-				// int curLoc = q_left.locIteratorGetMatch();
-				boolean moveToNextDoc = false;
-				int curLoc = QryIopNear.INVALIDLOC;
-
-				for (int i = 1; i < argsLen; i++) {
-					QryIop q_left = (QryIop) this.args.get(i - 1);
-
-					if (!q_left.locIteratorHasMatch()) {
-						moveToNextDoc = true;
-						break;
-					}
 
-					curLoc = q_left.locIteratorGetMatch();
+		Arrays.fill(cursors, 0, argsLen, 0);
 
-					QryIop q_i = (QryIop) this.args.get(i);
-					q_i.locIteratorAdvancePast(curLoc);
+		int tf = 0;
 
-					// //The biggest location of the right file is smaller than
-					// the location of the left file
-					// In this case, should move to the next document
-					if (!q_i.locIteratorHasMatch()) {
-						// q_0.locIteratorAdvancePast(q_iLoc);
-						curLoc = QryIopNear.INVALIDLOC;
-						moveToNextDoc = true;
-						break;
-					}
+		sweep: while (true) {
+			int curLoc = positions[0][cursors[0]];
+			int i = 1;
 
-					int q_iLoc = q_i.locIteratorGetMatch();
+			for (; i < argsLen; i++) {
 
-					// The distance is too far
-					// In this case, just need to move the locIterator of the
-					// first query
-					if ((q_iLoc - curLoc) > distance) {
-						q_left.locIteratorAdvance();
-						curLoc = QryIopNear.INVALIDLOC;
-						break;
-					}
+				// Skip positions of argument i that can't follow curLoc.
+
+				int[] p_i = positions[i];
+				int c = cursors[i];
 
-					curLoc = q_iLoc;
+				while ((c < tfs[i]) && (p_i[c] <= curLoc)) {
+					c++;
 				}
 
-				if (curLoc != QryIopNear.INVALIDLOC) {
-					positions.add(curLoc);
-					for (int i = 0; i < argsLen; i++) {
-						QryIop q_i = (QryIop) this.args.get(i);
-						q_i.locIteratorAdvance();
-					}
-				} else {
-					if (moveToNextDoc) {
-						break;
+				cursors[i] = c;
+
+				if (c >= tfs[i]) {
+					break sweep;
+				}
+
+				// The distance is too far; try the next position of the
+				// previous argument, and start again from the first one.
+
+				if (p_i[c] - curLoc > distance) {
+					if (++cursors[i - 1] >= tfs[i - 1]) {
+						break sweep;
 					}
+					continue sweep;
 				}
+
+				curLoc = p_i[c];
 			}
-			if (!positions.isEmpty()) {
-				Collections.sort(positions);
-				this.invertedList.appendPosting(docId_0, positions);
-			}
 
-			this.args.get(0).docIteratorAdvancePast(docId_0);
+			matches[tf++] = curLoc;
+
+			for (i = 0; i < argsLen; i++) {
+				if (++cursors[i] >= tfs[i]) {
+					break sweep;
+				}
+			}
 		}
 
+		return tf;
 	}
 
 	// public List<Integer> locationMatch(int matchAllDocId, QryIop q_i_1,
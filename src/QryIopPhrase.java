@@ -0,0 +1,235 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.Arrays;
+
+/**
+ * The PHRASE operator for all retrieval models. #PHRASE (a b c) matches
+ * documents where its arguments occur at consecutive positions, in order;
+ * it matches the same positions as #NEAR/1 (a b c). Quoted phrases in
+ * queries (e.g., "new york") are parsed into this operator.
+ * <p>
+ * Each argument has an offset from the start of the phrase. The offsets
+ * are consecutive unless the query parser removed stopwords from a quoted
+ * phrase: the index keeps the positions of stopwords, so "bank of america"
+ * is #PHRASE (bank america) with offsets 0 and 2, and it only matches
+ * documents where one word is between bank and america.
+ * </p>
+ * <p>
+ * A document's matches are found from the argument that has the fewest
+ * positions in the document. Each of its positions implies where the
+ * phrase starts, and the other arguments only check that they occur at the
+ * right offset from that start, so the cost depends on the rarest
+ * argument, not on the most frequent one.
+ * </p>
+ */
+public class QryIopPhrase extends QryIopProximity {
+
+	/**
+	 * The offset of each argument from the start of the phrase, in
+	 * ascending order.
+	 */
+	private int[] offsets = new int[0];
+
+	/**
+	 * Append an argument to the phrase, at the position after the previous
+	 * argument.
+	 *
+	 * @param q
+	 *            The query argument (query operator) to append.
+	 * @throws IllegalArgumentException
+	 *             q is an invalid argument
+	 */
+	public void appendArg(Qry q) throws IllegalArgumentException {
+		int n = this.offsets.length;
+		this.appendArg(q, (n == 0) ? 0 : this.offsets[n - 1] + 1);
+	}
+
+	/**
+	 * Append an argument to the phrase at an offset from the start of the
+	 * phrase, which must be larger than the previous argument's offset.
+	 *
+	 * @param q
+	 *            The query argument (query operator) to append.
+	 * @param offset
+	 *            The argument's offset.
+	 * @throws IllegalArgumentException
+	 *             q is an invalid argument
+	 */
+	public void appendArg(Qry q, int offset) throws IllegalArgumentException {
+		int n = this.offsets.length;
+
+		if ((n > 0) && (offset <= this.offsets[n - 1])) {
+			throw new IllegalArgumentException("Phrase offsets must be ascending.");
+		}
+
+		super.appendArg(q);
+		this.offsets = Arrays.copyOf(this.offsets, n + 1);
+		this.offsets[n] = offset;
+	}
+
+	/**
+	 * Find the matches in the document that every argument points to.
+	 *
+	 * @param matches
+	 *            A buffer for the matches.
+	 * @return The number of matches.
+	 */
+	protected int match(int[] matches) {
+		return matchPhrase(this.positions, this.tfs, this.args.size(), this.offsets, this.cursors, matches);
+	}
+
+	/**
+	 * Find the matches of #PHRASE in one document. Each position of the
+	 * argument that has the fewest positions implies a start; argument i
+	 * must occur at start + offsets[i]. The other arguments' cursors only
+	 * move forward, and they gallop (exponential search followed by binary
+	 * search), so skipping many positions of a frequent argument is cheap.
+	 * A match is reported at the position of the last argument, so matches
+	 * are in ascending order.
+	 *
+	 * @param positions
+	 *            The positions of each argument, in ascending order.
+	 * @param tfs
+	 *            The number of positions of each argument.
+	 * @param argsLen
+	 *            The number of arguments.
+	 * @param offsets
+	 *            The offset of each argument from the start of the phrase,
+	 *            in ascending order.
+	 * @param cursors
+	 *            A buffer for argsLen cursors.
+	 * @param matches
+	 *            A buffer for the matches, which must be as long as the
+	 *            smallest tf.
+	 * @return The number of matches.
+	 */
+	static int matchPhrase(int[][] positions, int[] tfs, int argsLen, int[] offsets, int[] cursors,
+			int[] matches) {
+
+		// Find the rarest argument.
+
+		int rarest = 0;
+
+		for (int i = 1; i < argsLen; i++) {
+			if (tfs[i] < tfs[rarest]) {
+				rarest = i;
+			}
+			cursors[i] = 0;
+		}
+
+		cursors[0] = 0;
+
+		int tf = 0;
+		int[] p_rarest = positions[rarest];
+
+		candidates: for (int j = 0; j < tfs[rarest]; j++) {
+			int start = p_rarest[j] - offsets[rarest];
+
+			for (int i = 0; i < argsLen; i++) {
+				if (i == rarest) {
+					continue;
+				}
+
+				int loc = start + offsets[i];
+				int c = gallop(positions[i], cursors[i], tfs[i], loc);
+
+				cursors[i] = c;
+
+				if (c >= tfs[i]) {
+					return tf; // Argument i has no more positions.
+				}
+
+				if (positions[i][c] != loc) {
+					continue candidates;
+				}
+			}
+
+			matches[tf++] = start + offsets[argsLen - 1];
+		}
+
+		return tf;
+	}
+
+	/**
+	 * Remove an argument and its offset.
+	 *
+	 * @param i
+	 *            The index of the argument to remove.
+	 */
+	public void removeArg(int i) {
+		super.removeArg(i);
+
+		int[] offsets = new int[this.offsets.length - 1];
+		System.arraycopy(this.offsets, 0, offsets, 0, i);
+		System.arraycopy(this.offsets, i + 1, offsets, i, offsets.length - i);
+		this.offsets = offsets;
+	}
+
+	/**
+	 * Get a string version of this query operator. If the offsets aren't
+	 * consecutive, they are shown after the display name (e.g.,
+	 * #phrase/0,2( bank.body america.body )), so phrases with different
+	 * gaps have different strings.
+	 *
+	 * @return The string version of this query operator.
+	 */
+	@Override
+	public String toString() {
+
+		String s = super.toString();
+
+		for (int i = 1; i < this.offsets.length; i++) {
+			if (this.offsets[i] - this.offsets[i - 1] != 1) {
+				StringBuilder name = new StringBuilder(this.getDisplayName());
+
+				for (int j = 0; j < this.offsets.length; j++) {
+					name.append((j == 0) ? "/" : ",").append(this.offsets[j] - this.offsets[0]);
+				}
+
+				return name + s.substring(this.getDisplayName().length());
+			}
+		}
+
+		return s;
+	}
+
+	/**
+	 * Find the first entry in a[from..end) that is at least key.
+	 *
+	 * @return The index of the entry, or end if there is none.
+	 */
+	private static int gallop(int[] a, int from, int end, int key) {
+
+		if ((from >= end) || (a[from] >= key)) {
+			return from;
+		}
+
+		// Find a range (lo, hi] that contains the entry.
+
+		int lo = from;
+		int step = 1;
+
+		while ((lo + step < end) && (a[lo + step] < key)) {
+			lo += step;
+			step <<= 1;
+		}
+
+		int hi = Math.min(lo + step, end);
+
+		// a[lo] < key, and a[hi] >= key if hi < end.
+
+		while (lo + 1 < hi) {
+			int mid = (lo + hi) >>> 1;
+
+			if (a[mid] < key) {
+				lo = mid;
+			} else {
+				hi = mid;
+			}
+		}
+
+		return hi;
+	}
+
+}
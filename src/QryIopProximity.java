@@ -0,0 +1,399 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ * The base class of proximity operators (e.g., #NEAR/n and #WINDOW/n), which
+ * match documents where their arguments occur at certain positions relative
+ * to each other. Subclasses only find the matches in one document (see
+ * match); this class iterates over documents.
+ * <p>
+ * A proximity operator is evaluated lazily. Its docIterator finds the
+ * positional matches of a document only when a parent operator advances to
+ * it, so an operator nested in a selective query (e.g., #AND (rare
+ * #NEAR/1 (a b))) only matches positions in the documents that its parent
+ * visits. Statistics of the whole inverted list (df, ctf, and maxTf) can
+ * only be known by evaluating every document, so the first request for one
+ * evaluates the operator into an inverted list, like other QryIop operators,
+ * and the docIterator then iterates over that list. BM25 and Indri scores
+ * need these statistics, so a proximity operator that is scored directly is
+ * evaluated when it is initialized; one that is an argument of another
+ * proximity operator, or that is scored by a Boolean model, stays lazy.
+ * </p>
+ */
+public abstract class QryIopProximity extends QryIop {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The retrieval model that the operator was initialized with.
+	 */
+	private RetrievalModel model;
+
+	/**
+	 * True while the docIterator finds matches lazily, false after the
+	 * operator is evaluated into an inverted list.
+	 */
+	private boolean lazy = false;
+
+	/**
+	 * True if the lazy docIterator has started to move the arguments'
+	 * docIterators.
+	 */
+	private boolean lazyStarted = false;
+
+	/**
+	 * The document that the lazy docIterator points to, Qry.INVALID_DOCID
+	 * if it hasn't been found yet, or Integer.MAX_VALUE if there are no more
+	 * matches.
+	 */
+	private int lazyDocid = Qry.INVALID_DOCID;
+
+	/**
+	 * The smallest document that the lazy docIterator may point to.
+	 */
+	private int lazyFrom = 0;
+
+	/**
+	 * The matches in lazyDocid.
+	 */
+	private int[] lazyMatches = new int[16];
+	private int lazyTf = 0;
+
+	/**
+	 * Buffers for match: the positions of each argument in the current
+	 * document, and a cursor for each argument.
+	 */
+	protected int[][] positions;
+	protected int[] tfs;
+	protected int[] cursors;
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Find the matches of the operator in the document that every argument's
+	 * docIterator points to. The arguments' positions are in positions and
+	 * tfs.
+	 *
+	 * @param matches
+	 *            A buffer for the matches, which is as long as the smallest
+	 *            tf.
+	 * @return The number of matches.
+	 */
+	protected abstract int match(int[] matches);
+
+	/**
+	 * Advance the query operator's internal iterator beyond the specified
+	 * document.
+	 *
+	 * @param docid
+	 *            The document's internal document id
+	 */
+	public void docIteratorAdvancePast(int docid) {
+		if (!this.lazy) {
+			super.docIteratorAdvancePast(docid);
+		} else if (this.lazyDocid <= docid) {
+			this.lazyAdvance(docid + 1);
+		}
+	}
+
+	/**
+	 * Advance the query operator's internal iterator to the specified
+	 * document if it exists, or beyond if it doesn't.
+	 *
+	 * @param docid
+	 *            The document's internal document id
+	 */
+	public void docIteratorAdvanceTo(int docid) {
+		if (!this.lazy) {
+			super.docIteratorAdvanceTo(docid);
+		} else if (this.lazyDocid < docid) {
+			this.lazyAdvance(docid);
+		}
+	}
+
+	/**
+	 * Advance the query operator's internal iterator beyond the any possible
+	 * document.
+	 */
+	public void docIteratorFinish() {
+		if (!this.lazy) {
+			super.docIteratorFinish();
+		} else {
+			this.lazyDocid = Integer.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Return the id of the document that the query operator's internal
+	 * iterator points to now.
+	 *
+	 * @return The internal id of the current document.
+	 */
+	public int docIteratorGetMatch() {
+		if (!this.lazy) {
+			return super.docIteratorGetMatch();
+		}
+
+		this.lazyFindMatch();
+		return (this.lazyDocid == Integer.MAX_VALUE) ? Qry.INVALID_DOCID : this.lazyDocid;
+	}
+
+	/**
+	 * Return the positions of the matches in the document that the
+	 * docIterator points to now.
+	 *
+	 * @return The positions, in ascending order.
+	 */
+	public int[] docIteratorGetMatchPositions() {
+		if (!this.lazy) {
+			return super.docIteratorGetMatchPositions();
+		}
+
+		this.lazyFindMatch();
+		return this.lazyMatches;
+	}
+
+	/**
+	 * Return the number of matches in the document that the docIterator
+	 * points to now.
+	 *
+	 * @return The document's term frequency.
+	 */
+	public int docIteratorGetMatchTf() {
+		if (!this.lazy) {
+			return super.docIteratorGetMatchTf();
+		}
+
+		this.lazyFindMatch();
+		return this.lazyTf;
+	}
+
+	/**
+	 * Indicates whether the query has a matching document.
+	 *
+	 * @param r
+	 *            A retrieval model (that is ignored - it can be null)
+	 * @return True if the query matches a document, otherwise false.
+	 */
+	public boolean docIteratorHasMatch(RetrievalModel r) {
+		if (!this.lazy) {
+			return super.docIteratorHasMatch(r);
+		}
+
+		this.lazyFindMatch();
+		return (this.lazyDocid != Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Evaluate the query operator; the result is an internal inverted list
+	 * that may be accessed via the internal iterators.
+	 *
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	protected void evaluate() throws IOException {
+
+		this.invertedList = new InvList(this.getField());
+
+		if (this.args.size() == 0) {
+			return;
+		}
+
+		int[] matches = new int[16];
+
+		// Stop early if the query's deadline is reached.
+
+		Deadline deadline = Deadline.getCurrent();
+
+		while (this.docIteratorHasMatchAll(null) && ((deadline == null) || !deadline.isReached())) {
+			int docid = this.args.get(0).docIteratorGetMatch();
+
+			matches = this.loadPositions(matches);
+			int tf = this.match(matches);
+
+			if (tf > 0) {
+				this.invertedList.appendPosting(docid, matches, tf);
+			}
+
+			this.args.get(0).docIteratorAdvancePast(docid);
+		}
+	}
+
+	/**
+	 * Get the collection term frequency (ctf) of the operator. The operator
+	 * is evaluated first, if it hasn't been.
+	 *
+	 * @return The collection term frequency (ctf).
+	 */
+	public int getCtf() {
+		this.materialize();
+		return super.getCtf();
+	}
+
+	/**
+	 * Get the document frequency (df) of the operator. The operator is
+	 * evaluated first, if it hasn't been.
+	 *
+	 * @return The document frequency (df).
+	 */
+	public int getDf() {
+		this.materialize();
+		return super.getDf();
+	}
+
+	/**
+	 * Get the largest number of matches in any document. The operator is
+	 * evaluated first, if it hasn't been.
+	 *
+	 * @return The maximum term frequency.
+	 */
+	public int getMaxTf() {
+		this.materialize();
+		return super.getMaxTf();
+	}
+
+	/**
+	 * Initialize the query operator (and its arguments), including its
+	 * internal iterators. The operator isn't evaluated until a statistic is
+	 * requested.
+	 *
+	 * @param r
+	 *            A retrieval model that guides initialization
+	 * @param index
+	 *            The index to search.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public void initialize(RetrievalModel r, IndexContext index) throws IOException {
+
+		this.index = index;
+		this.model = r;
+
+		for (Qry q_i : this.args) {
+			q_i.initialize(r, index);
+		}
+
+		int argsLen = this.args.size();
+
+		this.positions = new int[argsLen][];
+		this.tfs = new int[argsLen];
+		this.cursors = new int[argsLen];
+		this.invertedList = null;
+		this.lazy = true;
+		this.lazyStarted = false;
+		this.lazyDocid = Qry.INVALID_DOCID;
+		this.lazyFrom = 0;
+		this.lazyTf = 0;
+
+		if (argsLen == 0) {
+			this.lazyDocid = Integer.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Load the positions of each argument in the document that every
+	 * argument's docIterator points to.
+	 *
+	 * @param matches
+	 *            A buffer for matches.
+	 * @return The buffer, or a larger one if the buffer is too small for the
+	 *         matches of the document.
+	 */
+	private int[] loadPositions(int[] matches) {
+
+		int maxMatches = Integer.MAX_VALUE;
+
+		for (int i = 0; i < this.positions.length; i++) {
+			QryIop q_i = (QryIop) this.args.get(i);
+			this.positions[i] = q_i.docIteratorGetMatchPositions();
+			this.tfs[i] = q_i.docIteratorGetMatchTf();
+			maxMatches = Math.min(maxMatches, this.tfs[i]);
+		}
+
+		if (matches.length < maxMatches) {
+			matches = new int[Math.max(maxMatches, matches.length * 2)];
+		}
+
+		return matches;
+	}
+
+	/**
+	 * Move the lazy docIterator to the first document that is at least
+	 * docid. The match is found when it is needed.
+	 */
+	private void lazyAdvance(int docid) {
+		if (this.lazyDocid != Integer.MAX_VALUE) {
+			this.args.get(0).docIteratorAdvanceTo(docid);
+			this.lazyDocid = Qry.INVALID_DOCID;
+			this.lazyFrom = docid;
+			this.lazyStarted = true;
+		}
+	}
+
+	/**
+	 * Find the first document at or after the arguments' docIterators that
+	 * the operator matches, if it hasn't been found.
+	 */
+	private void lazyFindMatch() {
+
+		if (this.lazyDocid != Qry.INVALID_DOCID) {
+			return;
+		}
+
+		this.lazyStarted = true;
+
+		Deadline deadline = Deadline.getCurrent();
+
+		while (this.docIteratorHasMatchAll(null) && ((deadline == null) || !deadline.isReached())) {
+			int docid = this.args.get(0).docIteratorGetMatch();
+
+			this.lazyMatches = this.loadPositions(this.lazyMatches);
+			this.lazyTf = this.match(this.lazyMatches);
+
+			if (this.lazyTf > 0) {
+				this.lazyDocid = docid;
+				this.locIteratorReset();
+				return;
+			}
+
+			this.args.get(0).docIteratorAdvancePast(docid);
+		}
+
+		this.lazyDocid = Integer.MAX_VALUE;
+		this.lazyTf = 0;
+	}
+
+	/**
+	 * Evaluate the operator into an inverted list, if it hasn't been. If
+	 * the lazy docIterator has moved, the arguments are initialized again,
+	 * and the docIterator keeps its place.
+	 */
+	private void materialize() {
+
+		if (!this.lazy) {
+			return;
+		}
+
+		try {
+			if (this.lazyStarted) {
+				for (Qry q_i : this.args) {
+					q_i.initialize(this.model, this.index);
+				}
+			}
+
+			this.lazy = false;
+			this.evaluate();
+			this.docIteratorReset();
+
+			if (this.lazyDocid == Integer.MAX_VALUE) {
+				super.docIteratorFinish();
+			} else if (this.lazyStarted) {
+				super.docIteratorAdvanceTo(Math.max(this.lazyFrom, this.lazyDocid));
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+}
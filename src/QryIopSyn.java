@@ -2,7 +2,6 @@
  *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
-import java.util.*;
 
 /**
  * The SYN operator for all retrieval models.
@@ -12,7 +11,15 @@ public class QryIopSyn extends QryIop {
 	/**
 	 * Evaluate the query operator; the result is an internal inverted list that
 	 * may be accessed via the internal iterators.
-	 * 
+	 * <p>
+	 * The arguments' inverted lists are merged with a min-heap of arguments
+	 * ordered by their current document, so each posting costs O(log k) for
+	 * k arguments instead of a scan of every argument. The positions of the
+	 * arguments that match a document are merged the same way. A position
+	 * that occurs in several arguments (e.g., #SYN (apple apple)) is only
+	 * counted once.
+	 * </p>
+	 *
 	 * @throws IOException
 	 *             Error accessing the Lucene index.
 	 */
@@ -27,49 +34,211 @@ public class QryIopSyn extends QryIop {
 			return;
 		}
 
+		// Put each argument that has a match in the document heap.
+
+		int argsLen = this.args.size();
+		int[] docids = new int[argsLen];
+		int[] docHeap = new int[argsLen];
+		int docHeapSize = 0;
+
+		for (int i = 0; i < argsLen; i++) {
+			Qry q_i = this.args.get(i);
+
+			if (q_i.docIteratorHasMatch(null)) {
+				docids[i] = q_i.docIteratorGetMatch();
+				docHeap[docHeapSize++] = i;
+			}
+		}
+
+		for (int h = docHeapSize / 2 - 1; h >= 0; h--) {
+			siftDown(docHeap, h, docHeapSize, docids);
+		}
+
+		int[] group = new int[argsLen];
+		int[][] positions = new int[argsLen][];
+		int[] tfs = new int[argsLen];
+		int[] cursors = new int[argsLen];
+		int[] locHeap = new int[argsLen];
+		int[] locs = new int[argsLen];
+		int[] merged = new int[16];
+
+		// Stop early if the query's deadline is reached.
+
+		Deadline deadline = Deadline.getCurrent();
+
 		// Each pass of the loop adds 1 document to result inverted list
 		// until all of the argument inverted lists are depleted.
 
-		while (true) {
+		while ((docHeapSize > 0) && ((deadline == null) || !deadline.isReached())) {
 
-			// Find the minimum next document id. If there is none, we're done.
+			// Remove the arguments that match the minimum document id from
+			// the heap, and get their positions.
 
-			int minDocid = Qry.INVALID_DOCID;
+			int minDocid = docids[docHeap[0]];
+			int groupLen = 0;
+			int mergedLen = 0;
 
-			for (Qry q_i : this.args) {
-				if (q_i.docIteratorHasMatch(null)) {
-					int q_iDocid = q_i.docIteratorGetMatch();
+			while ((docHeapSize > 0) && (docids[docHeap[0]] == minDocid)) {
+				int i = docHeap[0];
+				QryIop q_i = (QryIop) this.args.get(i);
+
+				group[groupLen] = i;
+				positions[groupLen] = q_i.docIteratorGetMatchPositions();
+				tfs[groupLen] = q_i.docIteratorGetMatchTf();
+				mergedLen += tfs[groupLen];
+				groupLen++;
+
+				docHeap[0] = docHeap[--docHeapSize];
+				siftDown(docHeap, 0, docHeapSize, docids);
+			}
 
-					if ((minDocid > q_iDocid)
-							|| (minDocid == Qry.INVALID_DOCID)) {
-						minDocid = q_iDocid;
-					}
+			// Create a new posting that is the union of the positions of
+			// those arguments. Save it.
+
+			if (groupLen == 1) {
+				this.invertedList.appendPosting(minDocid, positions[0], tfs[0]);
+			} else {
+				if (merged.length < mergedLen) {
+					merged = new int[Math.max(mergedLen, merged.length * 2)];
 				}
+
+				mergedLen = mergePositions(positions, tfs, groupLen, cursors, locHeap, locs, merged);
+				this.invertedList.appendPosting(minDocid, merged, mergedLen);
 			}
 
-			if (minDocid == Qry.INVALID_DOCID)
-				break; // All docids have been processed. Done.
+			// Advance those arguments, and put the ones that still have
+			// matches back in the heap.
 
-			// Create a new posting that is the union of the posting lists
-			// that match the minDocid. Save it.
-			// Note: This implementation assumes that a location will not appear
-			// in two or more arguments. #SYN (apple apple) would break it.
+			for (int g = 0; g < groupLen; g++) {
+				int i = group[g];
+				Qry q_i = this.args.get(i);
 
-			List<Integer> positions = new ArrayList<Integer>();
+				q_i.docIteratorAdvancePast(minDocid);
 
-			for (Qry q_i : this.args) {
-				if (q_i.docIteratorHasMatch(null)
-						&& (q_i.docIteratorGetMatch() == minDocid)) {
-					Vector<Integer> locations_i = ((QryIop) q_i)
-							.docIteratorGetMatchPosting().positions;
-					positions.addAll(locations_i);
-					q_i.docIteratorAdvancePast(minDocid);
+				if (q_i.docIteratorHasMatch(null)) {
+					docids[i] = q_i.docIteratorGetMatch();
+					docHeap[docHeapSize] = i;
+					siftUp(docHeap, docHeapSize, docids);
+					docHeapSize++;
 				}
 			}
+		}
+	}
+
+	/**
+	 * Merge the positions of several arguments in one document. There is a
+	 * cursor for each argument, and the cursors are kept in a min-heap
+	 * ordered by their positions. A position that occurs in several
+	 * arguments is only merged once.
+	 *
+	 * @param positions
+	 *            The positions of each argument, in ascending order.
+	 * @param tfs
+	 *            The number of positions of each argument.
+	 * @param argsLen
+	 *            The number of arguments.
+	 * @param cursors
+	 *            A buffer for argsLen cursors.
+	 * @param heap
+	 *            A buffer for argsLen heap entries.
+	 * @param locs
+	 *            A buffer for the position of each cursor.
+	 * @param merged
+	 *            A buffer for the merged positions, which must be as long
+	 *            as the sum of the tfs.
+	 * @return The number of merged positions.
+	 */
+	static int mergePositions(int[][] positions, int[] tfs, int argsLen, int[] cursors, int[] heap, int[] locs,
+			int[] merged) {
+
+		int heapSize = 0;
+
+		for (int i = 0; i < argsLen; i++) {
+			if (tfs[i] > 0) {
+				cursors[i] = 0;
+				locs[i] = positions[i][0];
+				heap[heapSize++] = i;
+			}
+		}
+
+		for (int h = heapSize / 2 - 1; h >= 0; h--) {
+			siftDown(heap, h, heapSize, locs);
+		}
+
+		int mergedLen = 0;
+
+		while (heapSize > 0) {
+			int i = heap[0];
+			int loc = locs[i];
+
+			if ((mergedLen == 0) || (merged[mergedLen - 1] != loc)) {
+				merged[mergedLen++] = loc;
+			}
+
+			if (++cursors[i] < tfs[i]) {
+				locs[i] = positions[i][cursors[i]];
+			} else {
+				heap[0] = heap[--heapSize];
+			}
+
+			siftDown(heap, 0, heapSize, locs);
+		}
+
+		return mergedLen;
+	}
+
+	/**
+	 * Restore the heap order below entry h. Entries are ordered by their
+	 * keys.
+	 */
+	private static void siftDown(int[] heap, int h, int size, int[] keys) {
+
+		int entry = heap[h];
+		int key = keys[entry];
+
+		while (true) {
+			int child = 2 * h + 1;
+
+			if (child >= size) {
+				break;
+			}
 
-			Collections.sort(positions);
-			this.invertedList.appendPosting(minDocid, positions);
+			if ((child + 1 < size) && (keys[heap[child + 1]] < keys[heap[child]])) {
+				child++;
+			}
+
+			if (keys[heap[child]] >= key) {
+				break;
+			}
+
+			heap[h] = heap[child];
+			h = child;
+		}
+
+		heap[h] = entry;
+	}
+
+	/**
+	 * Restore the heap order above entry h. Entries are ordered by their
+	 * keys.
+	 */
+	private static void siftUp(int[] heap, int h, int[] keys) {
+
+		int entry = heap[h];
+		int key = keys[entry];
+
+		while (h > 0) {
+			int parent = (h - 1) / 2;
+
+			if (keys[heap[parent]] <= key) {
+				break;
+			}
+
+			heap[h] = heap[parent];
+			h = parent;
 		}
+
+		heap[h] = entry;
 	}
 
 }
@@ -4,20 +4,66 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
 /**
  * The TERM operator for all retrieval models. The TERM operator stores
  * information about a query term, for example "apple" in the query "#AND (apple
  * pie). Although it may seem odd to use a query operator to store a term, doing
  * so makes it easy to build structured queries with nested query operators.
- * 
+ * <p>
+ * By default the term's inverted list is copied out of Lucene when the
+ * operator is initialized. In streaming mode (see setStreaming) the operator
+ * instead iterates over Lucene's PostingsEnum directly. The docIterator
+ * delegates to PostingsEnum.advance, so documents that a conjunctive parent
+ * skips are never decoded, and positions are read only when a parent operator
+ * (e.g., #NEAR/n, #WINDOW/n, #SYN) uses the locIterator. The df and ctf come
+ * from Lucene's term statistics.
+ * </p>
  */
 public class QryIopTerm extends QryIop {
 
+	/**
+	 * True if new term operators iterate over Lucene postings directly
+	 * instead of materializing an InvList.
+	 */
+	private static boolean streaming = false;
+
 	private String term;
 
+	/**
+	 * Lucene's postings for the term, in streaming mode. null if the term
+	 * does not occur in the field.
+	 */
+	private PostingsEnum postings = null;
+
+	/**
+	 * The document that the streaming docIterator points to now.
+	 */
+	private int postingsDocid = DocIdSetIterator.NO_MORE_DOCS;
+
+	/**
+	 * The document whose positions are in postingsPositions, or
+	 * Qry.INVALID_DOCID if no positions have been read yet.
+	 */
+	private int postingsPositionsDocid = Qry.INVALID_DOCID;
+
+	private int[] postingsPositions = new int[16];
+
+	private int postingsDf = 0;
+	private int postingsCtf = 0;
+
+	/**
+	 * False if no parent operator will use the locIterator, in which case a
+	 * streaming term doesn't ask Lucene to decode positions.
+	 */
+	private boolean needsPositions = true;
+
 	/**
 	 * The term is assumed to match the body field.
-	 * 
+	 *
 	 * @param termString
 	 *            A term string.
 	 */
@@ -28,7 +74,7 @@ public class QryIopTerm extends QryIop {
 
 	/**
 	 * The term matches in the specified field.
-	 * 
+	 *
 	 * @param termString
 	 *            A term string.
 	 * @param fieldString
@@ -39,20 +85,301 @@ public class QryIopTerm extends QryIop {
 		this.field = fieldString;
 	}
 
+	/**
+	 * Choose whether term operators iterate over Lucene postings directly
+	 * (true) or materialize an InvList when they are initialized (false).
+	 *
+	 * @param streaming
+	 *            True to enable streaming mode.
+	 */
+	public static void setStreaming(boolean streaming) {
+		QryIopTerm.streaming = streaming;
+	}
+
+	/**
+	 * Indicate whether a parent operator will use the locIterator. This must
+	 * be called before the operator is initialized.
+	 *
+	 * @param needsPositions
+	 *            False if only docids and term frequencies are used.
+	 */
+	public void setNeedsPositions(boolean needsPositions) {
+		this.needsPositions = needsPositions;
+	}
+
+	/**
+	 * Advance the query operator's internal iterator beyond the specified
+	 * document.
+	 *
+	 * @param docid
+	 *            The document's internal document id
+	 */
+	public void docIteratorAdvancePast(int docid) {
+		if (this.postings == null) {
+			super.docIteratorAdvancePast(docid);
+		} else {
+			this.postingsAdvance(docid + 1);
+		}
+	}
+
+	/**
+	 * Advance the query operator's internal iterator to the specified
+	 * document if it exists, or beyond if it doesn't.
+	 *
+	 * @param docid
+	 *            The document's internal document id
+	 */
+	public void docIteratorAdvanceTo(int docid) {
+		if (this.postings == null) {
+			super.docIteratorAdvanceTo(docid);
+		} else {
+			this.postingsAdvance(docid);
+		}
+	}
+
+	/**
+	 * Advance the query operator's internal iterator beyond the any possible
+	 * document.
+	 */
+	public void docIteratorFinish() {
+		if (this.postings == null) {
+			super.docIteratorFinish();
+		} else {
+			this.postingsDocid = DocIdSetIterator.NO_MORE_DOCS;
+		}
+	}
+
+	/**
+	 * Return the id of the document that the query operator's internal
+	 * iterator points to now.
+	 *
+	 * @return The internal id of the current document.
+	 */
+	public int docIteratorGetMatch() {
+		if (this.postings == null) {
+			return super.docIteratorGetMatch();
+		} else {
+			return this.postingsDocid;
+		}
+	}
+
+	/**
+	 * Return the positions in the document that the docIterator points to
+	 * now. In streaming mode the positions are read from Lucene the first
+	 * time that they are requested for a document.
+	 *
+	 * @return The positions, in ascending order.
+	 */
+	public int[] docIteratorGetMatchPositions() {
+
+		if (this.postings == null) {
+			return super.docIteratorGetMatchPositions();
+		}
+
+		if (this.postingsPositionsDocid != this.postingsDocid) {
+			try {
+				int tf = this.postings.freq();
+
+				if (this.postingsPositions.length < tf) {
+					this.postingsPositions = new int[Math.max(tf,
+							this.postingsPositions.length * 2)];
+				}
+
+				for (int i = 0; i < tf; i++)
+					this.postingsPositions[i] = this.postings.nextPosition();
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+
+			this.postingsPositionsDocid = this.postingsDocid;
+		}
+
+		return this.postingsPositions;
+	}
+
+	/**
+	 * Return the term frequency in the document that the docIterator points
+	 * to now.
+	 *
+	 * @return The document's term frequency.
+	 */
+	public int docIteratorGetMatchTf() {
+		if (this.postings == null) {
+			return super.docIteratorGetMatchTf();
+		}
+
+		try {
+			return this.postings.freq();
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * Indicates whether the query has a matching document.
+	 *
+	 * @param r
+	 *            A retrieval model (that is ignored - it can be null)
+	 * @return True if the query matches a document, otherwise false.
+	 */
+	public boolean docIteratorHasMatch(RetrievalModel r) {
+		if (this.postings == null) {
+			return super.docIteratorHasMatch(r);
+		} else {
+			return (this.postingsDocid != DocIdSetIterator.NO_MORE_DOCS);
+		}
+	}
+
 	/**
 	 * Evaluate the query operator; the result is an internal inverted list that
 	 * may be accessed via the internal iterators.
-	 * 
+	 *
 	 * @throws IOException
 	 *             Error accessing the Lucene index.
 	 */
 	protected void evaluate() throws IOException {
-		this.invertedList = new InvList(this.term, this.field);
+		this.invertedList = InvListCache.get(this.index, this.term, this.field);
+	}
+
+	/**
+	 * Get the block statistics of the term's inverted list, if the index
+	 * has them (see BlockMaxIndex).
+	 *
+	 * @return The blocks, or null.
+	 */
+	public BlockMaxIndex.Blocks getBlockMaxBlocks() {
+		BlockMaxIndex blockMaxIndex = this.index.getBlockMaxIndex();
+
+		if (blockMaxIndex == null) {
+			return null;
+		} else {
+			return blockMaxIndex.get(this.field, this.term);
+		}
+	}
+
+	/**
+	 * Get the collection term frequency (ctf) associated with this query
+	 * operator.
+	 *
+	 * @return The collection term frequency (ctf).
+	 */
+	public int getCtf() {
+		if (this.postings == null) {
+			return super.getCtf();
+		} else {
+			return this.postingsCtf;
+		}
+	}
+
+	/**
+	 * Get the document frequency (df) associated with this query operator.
+	 *
+	 * @return The document frequency (df).
+	 */
+	public int getDf() {
+		if (this.postings == null) {
+			return super.getDf();
+		} else {
+			return this.postingsDf;
+		}
+	}
+
+	/**
+	 * Get the largest term frequency in any document that matches this query
+	 * operator. Lucene doesn't record this statistic, so in streaming mode it
+	 * is unknown and Integer.MAX_VALUE is returned.
+	 *
+	 * @return The maximum term frequency.
+	 */
+	public int getMaxTf() {
+		if (this.postings == null) {
+			return super.getMaxTf();
+		} else {
+			return Integer.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Initialize the query operator, including its internal iterators. In
+	 * streaming mode this opens Lucene's postings for the term instead of
+	 * materializing an inverted list.
+	 *
+	 * @param r
+	 *            A retrieval model (that is ignored)
+	 * @param index
+	 *            The index to search.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public void initialize(RetrievalModel r, IndexContext index) throws IOException {
+
+		this.postings = null;
+
+		if (!QryIopTerm.streaming) {
+			super.initialize(r, index);
+			return;
+		}
+
+		this.index = index;
+		IndexReader reader = index.getReader();
+
+		BytesRef termBytes = new BytesRef(this.term);
+		Term t = new Term(this.field, termBytes);
+
+		this.postingsDf = reader.docFreq(t);
+		this.postingsCtf = (int) reader.totalTermFreq(t);
+
+		if (this.postingsDf > 0) {
+			this.postings = MultiFields.getTermDocsEnum(reader,
+					this.field, termBytes, (this.needsPositions
+							? PostingsEnum.POSITIONS : PostingsEnum.FREQS));
+		}
+
+		if (this.postings == null) {
+
+			// An empty term behaves like an empty inverted list.
+
+			super.initialize(r, index);
+			return;
+		}
+
+		this.postingsDocid = this.postings.nextDoc();
+		this.postingsPositionsDocid = Qry.INVALID_DOCID;
+		this.locIteratorReset();
+	}
+
+	/**
+	 * Advance the streaming docIterator to the first document that is at
+	 * least docid.
+	 *
+	 * @param docid
+	 *            The document's internal document id
+	 */
+	private void postingsAdvance(int docid) {
+
+		if (this.postingsDocid < docid) {
+			try {
+				this.postingsDocid = this.postings.advance(docid);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+
+		this.locIteratorReset();
+	}
+
+	/**
+	 * Get the term.
+	 *
+	 * @return The processed (stemmed, lower-cased, etc) term string.
+	 */
+	public String getTerm() {
+		return this.term;
 	}
 
 	/**
 	 * Get a string version of this query operator.
-	 * 
+	 *
 	 * @return The string version of this query operator.
 	 */
 	public String toString() {
@@ -1,84 +1,152 @@
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
 
-public class QryIopWindow extends QryIop {
+public class QryIopWindow extends QryIopProximity {
 	
 	private int distance = 0;
 	
-	static private final int INVALIDLOC = Integer.MIN_VALUE;
-	
-	static private final int MAXLOC = Integer.MAX_VALUE;
+	/**
+	 * The heap of argument cursors that matchWindow uses.
+	 */
+	private int[] heap = null;
 	
 	QryIopWindow(int distance) {
 		this.distance = distance;
 	}
 	
 
-	@Override
-	protected void evaluate() throws IOException {
-		this.invertedList = new InvList(this.getField());
-		
-		if (args.size() == 0) {
-			return;
+	/**
+	 * Find the matches in the document that every argument points to.
+	 *
+	 * @param matches
+	 *            A buffer for the matches.
+	 * @return The number of matches.
+	 */
+	protected int match(int[] matches) {
+		if ((this.heap == null) || (this.heap.length != this.args.size())) {
+			this.heap = new int[this.args.size()];
 		}
-				
-		while (this.docIteratorHasMatchAll(null)) {		
-			int docId_0 = this.args.get(0).docIteratorGetMatch();
-			
-//			String externalId = Idx.getExternalDocid(docId_0);
-//			if(externalId.equals("GX069-07-13936812")) {
-//				System.out.println("Start to debug");
-//			}
-			
-			List<Integer> positions = new ArrayList<Integer>();
-			
-			boolean moveToNextDoc = false;
-			while(true) {
-				int maxLoc = Integer.MIN_VALUE;
-				int minLoc = Integer.MAX_VALUE;
-				int minLocIndex = -1;
-				for(int i = 0; i < this.args.size(); i++) {
-					QryIop q_i = (QryIop)this.args.get(i);
-					if(!q_i.locIteratorHasMatch()) {
-						maxLoc = Integer.MIN_VALUE;
-						moveToNextDoc = true;
-						break;
-					}
-					int q_iLoc = q_i.locIteratorGetMatch();
-					if(q_iLoc < minLoc) {
-						minLoc = q_iLoc;
-						minLocIndex = i;
-					}
-					if(q_iLoc > maxLoc) {
-						maxLoc = q_iLoc;
-					}
-				}	
-					// run out of locations, move doc Iteration
-				if(moveToNextDoc) {
+
+		return matchWindow(this.positions, this.tfs, this.args.size(), this.distance, this.cursors, this.heap,
+				matches);
+	}
+
+	/**
+	 * Find the matches of #WINDOW/n in one document: windows of fewer than
+	 * distance positions that contain every argument, in any order. There
+	 * is a cursor for each argument. While the cursors' positions span too
+	 * many positions, the cursor at the smallest position (the lowest
+	 * argument, if several are there) advances; when they fit, there is a
+	 * match at the largest position, and every cursor advances. The cursors
+	 * are kept in a min-heap, and the largest position is tracked as cursors
+	 * advance, so an advance costs O(log k) for k arguments. Matches are in
+	 * ascending order. The document has no more matches once any argument
+	 * runs out of positions.
+	 *
+	 * @param positions
+	 *            The positions of each argument, in ascending order.
+	 * @param tfs
+	 *            The number of positions of each argument.
+	 * @param argsLen
+	 *            The number of arguments.
+	 * @param distance
+	 *            The window size.
+	 * @param cursors
+	 *            A buffer for argsLen cursors.
+	 * @param heap
+	 *            A buffer for argsLen heap entries.
+	 * @param matches
+	 *            A buffer for the matches, which must be as long as the
+	 *            smallest tf.
+	 * @return The number of matches.
+	 */
+	static int matchWindow(int[][] positions, int[] tfs, int argsLen, int distance, int[] cursors, int[] heap,
+			int[] matches) {
+
+		int tf = 0;
+
+		Arrays.fill(cursors, 0, argsLen, 0);
+
+		while (true) {
+
+			// Put every cursor in the heap.
+
+			int maxLoc = Integer.MIN_VALUE;
+
+			for (int i = 0; i < argsLen; i++) {
+				heap[i] = i;
+				maxLoc = Math.max(maxLoc, positions[i][cursors[i]]);
+			}
+
+			for (int h = argsLen / 2 - 1; h >= 0; h--) {
+				siftDown(heap, h, argsLen, positions, cursors);
+			}
+
+			// Advance the smallest cursor until the window fits.
+
+			while (true) {
+				int minArg = heap[0];
+				int minLoc = positions[minArg][cursors[minArg]];
+
+				if (maxLoc - minLoc < distance) {
 					break;
 				}
-					
-				//Location not match, move the locIterator with the smallest value
-				if(Math.abs((double)maxLoc - (double)minLoc) >= distance) {
-					QryIop q_advance = (QryIop)this.args.get(minLocIndex);
-					q_advance.locIteratorAdvance();
-				} else {
-					positions.add(maxLoc);
-					for (int i = 0; i < this.args.size(); i++) {
-						QryIop q_i = (QryIop) this.args.get(i);
-						q_i.locIteratorAdvance();
-					}
+
+				if (++cursors[minArg] >= tfs[minArg]) {
+					return tf;
 				}
+
+				maxLoc = Math.max(maxLoc, positions[minArg][cursors[minArg]]);
+				siftDown(heap, 0, argsLen, positions, cursors);
 			}
-			if(!positions.isEmpty()) {
-				Collections.sort(positions);
-				this.invertedList.appendPosting(docId_0, positions);
+
+			matches[tf++] = maxLoc;
+
+			for (int i = 0; i < argsLen; i++) {
+				if (++cursors[i] >= tfs[i]) {
+					return tf;
+				}
 			}
-			this.args.get(0).docIteratorAdvancePast(docId_0);
 		}
 	}
-	
 
+	/**
+	 * Restore the heap order below entry h. Entries are ordered by the
+	 * position of their cursor, and then by argument.
+	 */
+	private static void siftDown(int[] heap, int h, int size, int[][] positions, int[] cursors) {
+
+		int arg = heap[h];
+		int loc = positions[arg][cursors[arg]];
+
+		while (true) {
+			int child = 2 * h + 1;
+
+			if (child >= size) {
+				break;
+			}
+
+			int childArg = heap[child];
+			int childLoc = positions[childArg][cursors[childArg]];
+
+			if (child + 1 < size) {
+				int rightArg = heap[child + 1];
+				int rightLoc = positions[rightArg][cursors[rightArg]];
+
+				if ((rightLoc < childLoc) || ((rightLoc == childLoc) && (rightArg < childArg))) {
+					child++;
+					childArg = rightArg;
+					childLoc = rightLoc;
+				}
+			}
+
+			if ((loc < childLoc) || ((loc == childLoc) && (arg < childArg))) {
+				break;
+			}
+
+			heap[h] = childArg;
+			h = child;
+		}
+
+		heap[h] = arg;
+	}
 }
@@ -8,6 +8,8 @@ import java.util.*;
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.util.Version;
 
 /**
@@ -29,6 +31,12 @@ import org.apache.lucene.util.Version;
  * instead of one.
  * </ul>
  * <p>
+ * A quoted phrase (e.g., "new york") is an argument like a term; it is
+ * parsed into #PHRASE (new york). Stopwords that are removed from a phrase
+ * still occupy their positions (e.g., "bank of america" matches bank and
+ * america with one word between them).
+ * </p>
+ * <p>
  * Add new document fields to the parser by modifying createTerms.
  * </p>
  */
@@ -101,6 +109,16 @@ public class QryParser {
 			return operator;
 		}
 
+		// #od/n (ordered window) is the same as #near/n.
+		if (operatorNameLowerCase.startsWith("#od/")) {
+			int numStartPosition = 4;
+			String distance = operatorName.substring(numStartPosition);
+			operatorDistance = Integer.parseInt(distance);
+			operator = new QryIopNear(operatorDistance);
+			operator.setDisplayName(operatorName);
+			return operator;
+		}
+
 		// STUDENT HW1 AND HW2 CODE HERE
 
 		// Create the query operator.
@@ -113,6 +131,10 @@ public class QryParser {
 		case "#syn":
 			operator = new QryIopSyn();
 			break;
+
+		case "#phrase":
+			operator = new QryIopPhrase();
+			break;
 		
 		case "#and":
 			operator = new QrySopAnd();
@@ -139,6 +161,72 @@ public class QryParser {
 		return operator;
 	}
 
+	/**
+	 * Create a #PHRASE operator from the text of a quoted phrase. Each token
+	 * may produce several terms (e.g., near-death), which are all arguments
+	 * of the phrase. The phrase is tokenized as a whole, so each term's
+	 * offset in the phrase counts the positions of the stopwords before it,
+	 * as the index does.
+	 * 
+	 * @parameter phrase The text between the quotes.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	private static Qry createPhrase(String phrase) throws IOException {
+
+		QryIopPhrase operator = (QryIopPhrase) createOperator("#phrase");
+		String argString = phrase.trim();
+
+		// Remove the fields from the tokens, and remember where each
+		// token starts in the text that is tokenized.
+
+		StringBuilder text = new StringBuilder();
+		List<Integer> starts = new ArrayList<Integer>();
+		List<String> fields = new ArrayList<String>();
+
+		while (argString.length() > 0) {
+			PopData<String, String> p = popTerm(argString);
+			String[] termField = splitField(p.getPopped());
+
+			text.append(' ');
+			starts.add(text.length());
+			text.append(termField[0]);
+			fields.add(termField[1]);
+
+			argString = p.getRemaining().trim();
+		}
+
+		TokenStream tokenStream = ANALYZER.tokenStream("dummyField",
+				new StringReader(text.toString()));
+		CharTermAttribute charTermAttribute = tokenStream
+				.addAttribute(CharTermAttribute.class);
+		PositionIncrementAttribute positionIncrementAttribute = tokenStream
+				.addAttribute(PositionIncrementAttribute.class);
+		OffsetAttribute offsetAttribute = tokenStream
+				.addAttribute(OffsetAttribute.class);
+		tokenStream.reset();
+
+		int position = -1;
+		int token = 0;
+
+		while (tokenStream.incrementToken()) {
+			position += positionIncrementAttribute.getPositionIncrement();
+
+			while ((token + 1 < starts.size())
+					&& (starts.get(token + 1) <= offsetAttribute.startOffset())) {
+				token++;
+			}
+
+			operator.appendArg(new QryIopTerm(charTermAttribute.toString(),
+					fields.get(token)), position);
+		}
+
+		tokenStream.end();
+		tokenStream.close();
+
+		return operator;
+	}
+
 	/**
 	 * Create one or more terms from a token. The token may contain dashes or
 	 * other punctuation b(e.g., near-death) and/or a field name (e.g.,
@@ -152,26 +240,9 @@ public class QryParser {
 
 		// Split the token into a term and a field.
 
-		int delimiter = token.indexOf('.');
-		String field = null;
-		String term = null;
-
-		if (delimiter < 0) { // .body is the default field
-			field = "body";
-			term = token;
-		} else { // Remove the field from the token
-			field = token.substring(delimiter + 1).toLowerCase();
-			term = token.substring(0, delimiter);
-		}
-
-		// Confirm that the field is a known field.
-
-		if ((field.compareTo("url") != 0) && (field.compareTo("keywords") != 0)
-				&& (field.compareTo("title") != 0)
-				&& (field.compareTo("body") != 0)
-				&& (field.compareTo("inlink") != 0)) {
-			syntaxError("Unknown field " + token);
-		}
+		String[] termField = splitField(token);
+		String term = termField[0];
+		String field = termField[1];
 
 		// Lexical processing, stopwords, stemming. A loop is used
 		// just in case a term (e.g., "near-death") gets tokenized into
@@ -357,6 +428,10 @@ public class QryParser {
 				p = popSubquery(queryString);
 				qargs = new Qry[1];
 				qargs[0] = parseString(p.getPopped());
+			} else if (queryString.charAt(0) == '"') { // Quoted phrase
+				p = popPhrase(queryString);
+				qargs = new Qry[1];
+				qargs[0] = createPhrase(p.getPopped());
 			} else { // Term
 				p = popTerm(queryString);
 				qargs = createTerms(p.getPopped());
@@ -378,6 +453,29 @@ public class QryParser {
 		return queryTree;
 	}
 
+	/**
+	 * Remove a quoted phrase from an argument string. Return the text between
+	 * the quotes and the modified argument string.
+	 * 
+	 * @param String
+	 *            A partial query argument string, e.g., "\"a b\" c d".
+	 * @return PopData<String,String> The phrase string and the modified
+	 *         argString (e.g., "a b" and "c d".
+	 */
+	static private PopData<String, String> popPhrase(String argString) {
+
+		int i = argString.indexOf('"', 1);
+
+		if (i < 0) {
+			syntaxError("Unbalanced quotes in " + argString);
+		}
+
+		String phrase = argString.substring(1, i);
+		argString = argString.substring(i + 1);
+
+		return new PopData<String, String>(phrase, argString);
+	}
+
 	/**
 	 * Remove a subQuery from an argument string. Return the subquery and the
 	 * modified argument string.
@@ -433,6 +531,40 @@ public class QryParser {
 		return new PopData<String, String>(weight, argString);
 	}
 	
+	/**
+	 * Split a token into a term and a field (e.g., apple.title). The field
+	 * must be a known field.
+	 * 
+	 * @param token
+	 *            The token consumed from the query string.
+	 * @return The term and the field (body if the token has no field).
+	 */
+	static private String[] splitField(String token) {
+
+		int delimiter = token.indexOf('.');
+		String field = null;
+		String term = null;
+
+		if (delimiter < 0) { // .body is the default field
+			field = "body";
+			term = token;
+		} else { // Remove the field from the token
+			field = token.substring(delimiter + 1).toLowerCase();
+			term = token.substring(0, delimiter);
+		}
+
+		// Confirm that the field is a known field.
+
+		if ((field.compareTo("url") != 0) && (field.compareTo("keywords") != 0)
+				&& (field.compareTo("title") != 0)
+				&& (field.compareTo("body") != 0)
+				&& (field.compareTo("inlink") != 0)) {
+			syntaxError("Unknown field " + token);
+		}
+
+		return new String[] { term, field };
+	}
+
 	/**
 	 * Throw an error specialized for query parsing syntax errors.
 	 * 
@@ -0,0 +1,882 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * QryServer is a long-running alternative to QryEval's batch mode. It opens
+ * the index once, and then answers queries over HTTP, so that queries don't
+ * pay for opening the index, building the DocLengthStore, or warming up the
+ * analyzer and the JIT.
+ * <p>
+ * Usage: java QryServer paramFile
+ * </p>
+ * <p>
+ * The parameter file has the parameters of QryEval (e.g., indexPath,
+ * postings:*, idx:*, federated:*), except that queryFilePath and
+ * trecEvalOutputPath are not needed, and these:
+ * </p>
+ * <ul>
+ * <li>server:port: the port to listen on (default 8080).
+ * <li>server:maxK: the largest number of documents that a request may ask
+ * for (default 10000).
+ * <li>server:warmupQueries: a query file (qid:query lines) that is evaluated
+ * before the server starts, with the default retrieval model.
+ * <li>queries:threads, queries:virtualThreads: the threads that answer
+ * requests (see QryEval).
+ * <li>retrievalAlgorithm, BM25:*, Indri:*: the default retrieval model.
+ * </ul>
+ * <p>
+ * POST /search takes a JSON object that has the query and, optionally, the
+ * number of documents (k, default 100, at most server:maxK) and any
+ * retrieval model parameters (e.g., {"query": "apple pie", "k": 10,
+ * "retrievalAlgorithm": "BM25", "BM25:k_1": 1.2, "BM25:b": 0.75,
+ * "BM25:k_3": 0}). Missing model parameters are read from the parameter
+ * file. The response has the ranked external ids and scores: {"results":
+ * [{"rank": 1, "externalId": "...", "score": ...}, ...], "truncated":
+ * false, "timeMs": ...}. Malformed requests get status 400.
+ * </p>
+ * <p>
+ * Requests are admitted only while fewer than queries:threads +
+ * server:maxQueued (default 4 queries:threads) requests are being evaluated
+ * or waiting for a thread; other requests get status 503 at once, so a load
+ * spike doesn't build an unbounded queue. A request may have a deadline,
+ * which starts when the request is admitted: server:deadlineMs, or
+ * deadlineMs in the request. If the server has a deadline, a request may
+ * only shorten it; a request's deadlineMs that is larger, zero, or negative
+ * doesn't lift it, so one client can't monopolize a thread with an
+ * expensive (e.g., #NEAR) query. Evaluation checks the deadline
+ * cooperatively (see Deadline); a query that reaches it returns the top
+ * documents that were scored in time, with "truncated": true.
+ * </p>
+ * <p>
+ * GET /stats reports a latency histogram for each class of query (short,
+ * long, and proximity queries), and the number of rejected requests.
+ * </p>
+ */
+public class QryServer {
+
+	// --------------- Constants and variables ---------------------
+
+	private static final String USAGE = "Usage:  java QryServer paramFile\n\n";
+
+	private static final int DEFAULT_PORT = 8080;
+
+	private static final int DEFAULT_K = 100;
+
+	private static final int DEFAULT_MAX_K = 10000;
+
+	/**
+	 * The number of retrieval models that are cached.
+	 */
+	private static final int MAX_MODELS = 16;
+
+	/**
+	 * Queries that have more terms than this are long queries.
+	 */
+	private static final int LONG_QUERY_TERMS = 20;
+
+	private static final String[] QUERY_CLASSES = { "short", "long", "proximity" };
+
+	/**
+	 * The parameter file.
+	 */
+	private final Map<String, String> parameters;
+
+	/**
+	 * The indexes to search, or null to search the current index.
+	 */
+	private final FederatedSearch federated;
+
+	/**
+	 * Recently used retrieval models, indexed by their parameters, so the
+	 * values that a model caches (e.g., BM25 length normalization tables) are
+	 * reused by later requests with the same parameters. Clients may send any
+	 * parameter values, so only the MAX_MODELS most recently used models are
+	 * kept. Access is synchronized on the map.
+	 */
+	private final Map<String, RetrievalModel> models = new LinkedHashMap<String, RetrievalModel>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, RetrievalModel> eldest) {
+			return (this.size() > MAX_MODELS);
+		}
+	};
+
+	/**
+	 * Latency histograms, indexed by query class.
+	 */
+	private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+
+	/**
+	 * The default deadline of a request, in milliseconds, or 0 for none.
+	 */
+	private final long deadlineMs;
+
+	/**
+	 * The largest k that a request may ask for.
+	 */
+	private final int maxK;
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * A permit for each request that may be evaluated or wait for a thread.
+	 */
+	private Semaphore admission;
+
+	private int maxAdmitted;
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * @param args
+	 *            The only argument is the parameter file name.
+	 * @throws Exception
+	 *             Error accessing the Lucene index.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 1) {
+			throw new IllegalArgumentException(USAGE);
+		}
+
+		Map<String, String> parameters = QryEval.readParameters(args[0]);
+
+		if (!parameters.containsKey("indexPath")) {
+			throw new IllegalArgumentException("Required parameters were missing from the parameter file.");
+		}
+
+		// Open the indexes.
+
+		QryEval.initializeEvaluationOptions(parameters);
+		Idx.open(parameters.get("indexPath"));
+
+		for (String indexPath : QryEval.getFederatedIndexPaths(parameters)) {
+			if (Idx.getContext(indexPath) == null) {
+				Idx.open(indexPath);
+			}
+		}
+
+		QryServer server = new QryServer(parameters);
+
+		if (parameters.containsKey("server:warmupQueries")) {
+			server.warmUp(parameters.get("server:warmupQueries"));
+		}
+
+		int port = parameters.containsKey("server:port") ? Integer.parseInt(parameters.get("server:port"))
+				: DEFAULT_PORT;
+
+		server.start(port);
+		System.out.println("Listening on port " + port);
+	}
+
+	/**
+	 * @param parameters
+	 *            The parameters read from the parameter file. The indexes
+	 *            that they name must be open.
+	 */
+	public QryServer(Map<String, String> parameters) {
+
+		this.parameters = parameters;
+
+		if (parameters.containsKey("federated:indexPaths")) {
+			List<IndexContext> shards = new ArrayList<IndexContext>();
+
+			for (String indexPath : QryEval.getFederatedIndexPaths(parameters)) {
+				shards.add(Idx.getContext(indexPath));
+			}
+
+			FederatedSearch.Normalization normalization = FederatedSearch.Normalization.NONE;
+
+			if (parameters.containsKey("federated:normalization")) {
+				normalization = FederatedSearch.Normalization
+						.valueOf(parameters.get("federated:normalization").toUpperCase());
+			}
+
+			this.federated = new FederatedSearch(shards, normalization);
+		} else {
+			this.federated = null;
+		}
+
+		this.deadlineMs = parameters.containsKey("server:deadlineMs") ? Long.parseLong(parameters
+				.get("server:deadlineMs")) : 0;
+
+		this.maxK = parameters.containsKey("server:maxK") ? Integer.parseInt(parameters.get("server:maxK"))
+				: DEFAULT_MAX_K;
+
+		for (String queryClass : QUERY_CLASSES) {
+			this.histograms.put(queryClass, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * Start answering requests.
+	 *
+	 * @param port
+	 *            The port to listen on.
+	 * @throws IOException
+	 *             Unable to listen on the port.
+	 */
+	public void start(int port) throws IOException {
+
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		if (this.parameters.containsKey("queries:threads")) {
+			threads = Integer.parseInt(this.parameters.get("queries:threads"));
+		}
+
+		int maxQueued = 4 * threads;
+
+		if (this.parameters.containsKey("server:maxQueued")) {
+			maxQueued = Integer.parseInt(this.parameters.get("server:maxQueued"));
+		}
+
+		this.maxAdmitted = threads + maxQueued;
+		this.admission = new Semaphore(this.maxAdmitted);
+		this.executor = QryEval.newQueryExecutor(threads,
+				Boolean.parseBoolean(this.parameters.get("queries:virtualThreads")));
+
+		// The server's own thread admits requests and answers /stats, and
+		// the executor evaluates admitted requests.
+
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		this.server.createContext("/search", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				admit(exchange);
+			}
+		});
+		this.server.createContext("/stats", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				sendResponse(exchange, 200, getStats());
+			}
+		});
+		this.server.start();
+	}
+
+	/**
+	 * Stop answering requests.
+	 */
+	public void stop() {
+		if (this.server != null) {
+			this.server.stop(0);
+		}
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+		}
+		if (this.federated != null) {
+			this.federated.close();
+		}
+	}
+
+	/**
+	 * Evaluate the queries of a query file, and ignore the results. This
+	 * loads the parts of the index that queries use, and gives the JIT a
+	 * chance to compile the query operators.
+	 *
+	 * @param queryFilePath
+	 *            A file of qid:query lines.
+	 * @throws Exception
+	 *             Error accessing the index, or a malformed query.
+	 */
+	public void warmUp(String queryFilePath) throws Exception {
+
+		RetrievalModel model = this.getModel(new HashMap<String, String>());
+		BufferedReader input = new BufferedReader(new FileReader(queryFilePath));
+		Timer timer = new Timer();
+		timer.start();
+
+		try {
+			String qLine = null;
+
+			while ((qLine = input.readLine()) != null) {
+				int d = qLine.indexOf(':');
+
+				if (d >= 0) {
+					this.search(qLine.substring(d + 1), model, DEFAULT_K);
+				}
+			}
+		} finally {
+			input.close();
+		}
+
+		timer.stop();
+		System.out.println("Warm-up time:  " + timer);
+	}
+
+	/**
+	 * Evaluate a query.
+	 *
+	 * @param query
+	 *            A string that contains a query.
+	 * @param model
+	 *            The retrieval model determines how matching and scoring is
+	 *            done.
+	 * @param k
+	 *            The number of documents to return.
+	 * @return The top k documents, sorted.
+	 * @throws IOException
+	 *             Error accessing the index.
+	 */
+	public ScoreList search(String query, RetrievalModel model, int k) throws IOException {
+
+		ScoreList r = (this.federated != null) ? this.federated.search(query, model, k)
+				: QryEval.processQuery(query, model, k);
+
+		r.sort();
+		r.truncate(k);
+		return r;
+	}
+
+	/**
+	 * Give a /search request to the executor, or reject it if too many
+	 * requests are waiting.
+	 */
+	private void admit(final HttpExchange exchange) throws IOException {
+
+		if (!this.admission.tryAcquire()) {
+			this.rejected.incrementAndGet();
+			exchange.getResponseHeaders().set("Retry-After", "1");
+			sendResponse(exchange, 503, "{\"error\": \"The server is busy.\"}");
+			return;
+		}
+
+		final long admitted = System.nanoTime();
+
+		try {
+			this.executor.execute(new Runnable() {
+				public void run() {
+					try {
+						handleSearch(exchange, admitted);
+					} catch (IOException ex) {
+						ex.printStackTrace();
+					} finally {
+						admission.release();
+						exchange.close();
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			this.admission.release();
+			sendResponse(exchange, 503, "{\"error\": \"The server is stopping.\"}");
+		}
+	}
+
+	/**
+	 * Answer a POST /search request.
+	 *
+	 * @param exchange
+	 *            The request.
+	 * @param admitted
+	 *            When the request was admitted, in System.nanoTime units.
+	 */
+	private void handleSearch(HttpExchange exchange, long admitted) throws IOException {
+
+		try {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				sendResponse(exchange, 405, "{\"error\": \"POST a JSON query to /search\"}");
+				return;
+			}
+
+			Map<String, String> request = parseJsonObject(readBody(exchange));
+			String query = request.remove("query");
+
+			if ((query == null) || (query.trim().length() == 0)) {
+				throw new IllegalArgumentException("The request has no query.");
+			}
+
+			int k = DEFAULT_K;
+
+			if (request.containsKey("k")) {
+				double requestK = Double.parseDouble(request.remove("k"));
+
+				if (!(requestK >= 1)) {
+					throw new IllegalArgumentException("k must be at least 1.");
+				} else if (requestK > this.maxK) {
+					throw new IllegalArgumentException("k must be at most " + this.maxK + ".");
+				}
+
+				k = (int) requestK;
+			}
+
+			long deadlineMs = this.deadlineMs;
+
+			if (request.containsKey("deadlineMs")) {
+				double requestMs = Double.parseDouble(request.remove("deadlineMs"));
+
+				// A request may shorten the server's deadline, but not lift it.
+
+				if ((requestMs > 0) && ((deadlineMs <= 0) || (requestMs < deadlineMs))) {
+					deadlineMs = (long) Math.ceil(requestMs);
+				}
+			}
+
+			RetrievalModel model = this.getModel(request);
+			String queryClass = classify(query);
+			Deadline deadline = null;
+
+			if (deadlineMs > 0) {
+				long queuedMs = (System.nanoTime() - admitted) / 1000000L;
+				deadline = new Deadline(deadlineMs - queuedMs);
+			}
+
+			Timer timer = new Timer();
+			timer.start();
+			Deadline.setCurrent(deadline);
+			ScoreList r;
+
+			try {
+				r = this.search(query, model, k);
+			} finally {
+				Deadline.setCurrent(null);
+			}
+
+			timer.stop();
+
+			boolean truncated = (deadline != null) && deadline.wasReached();
+			this.histograms.get(queryClass).add((System.nanoTime() - admitted) / 1e6, truncated);
+
+			StringBuilder response = new StringBuilder("{\"results\": [");
+
+			for (int i = 0; i < r.size(); i++) {
+				response.append((i > 0) ? ", " : "").append("{\"rank\": ").append(i + 1)
+						.append(", \"externalId\": ").append(quote(r.getExternalDocid(i)))
+						.append(", \"score\": ").append(r.getDocidScore(i)).append("}");
+			}
+
+			response.append("], \"truncated\": ").append(truncated).append(", \"queryClass\": \"")
+					.append(queryClass).append("\", \"timeMs\": ").append(timer.getElapsedMillis()).append("}");
+			sendResponse(exchange, 200, response.toString());
+		} catch (IllegalArgumentException ex) {
+			sendResponse(exchange, 400, "{\"error\": " + quote(String.valueOf(ex.getMessage())) + "}");
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			sendResponse(exchange, 500, "{\"error\": " + quote(String.valueOf(ex)) + "}");
+		}
+	}
+
+	/**
+	 * Get the retrieval model that a request asks for. Parameters that the
+	 * request doesn't have are read from the parameter file.
+	 *
+	 * @param request
+	 *            The request's retrieval model parameters.
+	 * @return The retrieval model.
+	 * @throws IOException
+	 *             Error accessing the index.
+	 */
+	private RetrievalModel getModel(Map<String, String> request) throws IOException {
+
+		Map<String, String> modelParameters = new TreeMap<String, String>();
+
+		for (Map.Entry<String, String> parameter : this.parameters.entrySet()) {
+			if (isModelParameter(parameter.getKey())) {
+				modelParameters.put(parameter.getKey(), parameter.getValue());
+			}
+		}
+
+		for (Map.Entry<String, String> parameter : request.entrySet()) {
+			if (!isModelParameter(parameter.getKey())) {
+				throw new IllegalArgumentException("Unknown request parameter " + parameter.getKey());
+			}
+			modelParameters.put(parameter.getKey(), parameter.getValue());
+		}
+
+		String key = modelParameters.toString();
+		RetrievalModel model;
+
+		synchronized (this.models) {
+			model = this.models.get(key);
+		}
+
+		if (model == null) {
+			String algorithm = modelParameters.get("retrievalAlgorithm");
+
+			if (algorithm == null) {
+				throw new IllegalArgumentException("The request has no retrievalAlgorithm.");
+			} else if (algorithm.equalsIgnoreCase("BM25")) {
+				requireParameters(modelParameters, "BM25:k_1", "BM25:b", "BM25:k_3");
+			} else if (algorithm.equalsIgnoreCase("Indri")) {
+				requireParameters(modelParameters, "Indri:mu", "Indri:lambda");
+			}
+
+			model = QryEval.initializeRetrievalModel(modelParameters);
+
+			if (this.federated != null) {
+				model.setCollectionStats(this.federated.getCollectionStats());
+			}
+
+			synchronized (this.models) {
+				this.models.put(key, model);
+			}
+		}
+
+		return model;
+	}
+
+	/**
+	 * Get the class of a query, for latency statistics: proximity (the
+	 * query has #NEAR, #WINDOW, #OD, or #PHRASE operators, or quoted
+	 * phrases), long (e.g., expanded queries), or short.
+	 */
+	static String classify(String query) {
+
+		String lowerCase = query.toLowerCase();
+
+		if (lowerCase.contains("#near") || lowerCase.contains("#window") || lowerCase.contains("#od/")
+				|| lowerCase.contains("#phrase") || (lowerCase.indexOf('"') >= 0)) {
+			return "proximity";
+		}
+
+		// Count terms, but not operators or weights.
+
+		int terms = 0;
+
+		for (String token : lowerCase.split("[\\s()]+")) {
+			if ((token.length() > 0) && !token.startsWith("#") && !token.matches("[0-9.]+")) {
+				terms++;
+			}
+		}
+
+		return (terms > LONG_QUERY_TERMS) ? "long" : "short";
+	}
+
+	/**
+	 * Get the server statistics that GET /stats reports.
+	 */
+	private String getStats() {
+
+		StringBuilder stats = new StringBuilder("{\"admitted\": ")
+				.append(this.maxAdmitted - this.admission.availablePermits())
+				.append(", \"maxAdmitted\": ").append(this.maxAdmitted)
+				.append(", \"rejected\": ").append(this.rejected.get())
+				.append(", \"latency\": {");
+		String separator = "";
+
+		for (Map.Entry<String, LatencyHistogram> histogram : this.histograms.entrySet()) {
+			stats.append(separator).append(quote(histogram.getKey())).append(": ");
+			histogram.getValue().toJson(stats);
+			separator = ", ";
+		}
+
+		return stats.append("}}").toString();
+	}
+
+	private static boolean isModelParameter(String name) {
+		return name.equals("retrievalAlgorithm") || name.startsWith("BM25:") || name.startsWith("Indri:");
+	}
+
+	private static void requireParameters(Map<String, String> parameters, String... names) {
+		for (String name : names) {
+			if (!parameters.containsKey(name)) {
+				throw new IllegalArgumentException("The request has no " + name + ".");
+			}
+		}
+	}
+
+	private static String readBody(HttpExchange exchange) throws IOException {
+
+		InputStream input = exchange.getRequestBody();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+
+		while ((n = input.read(buffer)) > 0) {
+			body.write(buffer, 0, n);
+		}
+
+		input.close();
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static void sendResponse(HttpExchange exchange, int status, String body) throws IOException {
+
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+
+		OutputStream output = exchange.getResponseBody();
+		output.write(bytes);
+		output.close();
+	}
+
+	/**
+	 * Parse a JSON object whose values are strings, numbers, booleans, or
+	 * null. Values are returned as strings; null values are omitted.
+	 *
+	 * @param json
+	 *            The JSON text.
+	 * @return The object's members.
+	 * @throws IllegalArgumentException
+	 *             The text isn't a flat JSON object.
+	 */
+	static Map<String, String> parseJsonObject(String json) {
+
+		Map<String, String> members = new LinkedHashMap<String, String>();
+		int[] pos = { skipSpace(json, 0) };
+
+		expect(json, pos, '{');
+
+		if (peek(json, pos) == '}') {
+			pos[0]++;
+		} else {
+			while (true) {
+				String name = parseString(json, pos);
+				expect(json, pos, ':');
+				String value = parseValue(json, pos);
+
+				if (value != null) {
+					members.put(name, value);
+				}
+
+				if (peek(json, pos) == ',') {
+					pos[0]++;
+				} else {
+					expect(json, pos, '}');
+					break;
+				}
+			}
+		}
+
+		if (skipSpace(json, pos[0]) != json.length()) {
+			throw new IllegalArgumentException("Malformed JSON: text after the object");
+		}
+
+		return members;
+	}
+
+	private static String parseValue(String json, int[] pos) {
+
+		char c = peek(json, pos);
+
+		if (c == '"') {
+			return parseString(json, pos);
+		}
+
+		int start = pos[0];
+
+		while ((pos[0] < json.length()) && ("-+.eE".indexOf(json.charAt(pos[0])) >= 0
+				|| Character.isLetterOrDigit(json.charAt(pos[0])))) {
+			pos[0]++;
+		}
+
+		String token = json.substring(start, pos[0]);
+
+		if (token.equals("null")) {
+			return null;
+		} else if (token.equals("true") || token.equals("false")) {
+			return token;
+		}
+
+		try {
+			Double.parseDouble(token);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Malformed JSON: unsupported value at " + start);
+		}
+
+		return token;
+	}
+
+	private static String parseString(String json, int[] pos) {
+
+		expect(json, pos, '"');
+		StringBuilder s = new StringBuilder();
+
+		while (true) {
+			if (pos[0] >= json.length()) {
+				throw new IllegalArgumentException("Malformed JSON: unterminated string");
+			}
+
+			char c = json.charAt(pos[0]++);
+
+			if (c == '"') {
+				return s.toString();
+			} else if (c != '\\') {
+				s.append(c);
+			} else if (pos[0] >= json.length()) {
+				throw new IllegalArgumentException("Malformed JSON: unterminated string");
+			} else {
+				char e = json.charAt(pos[0]++);
+
+				switch (e) {
+				case 'b':
+					s.append('\b');
+					break;
+				case 'f':
+					s.append('\f');
+					break;
+				case 'n':
+					s.append('\n');
+					break;
+				case 'r':
+					s.append('\r');
+					break;
+				case 't':
+					s.append('\t');
+					break;
+				case 'u':
+					if (pos[0] + 4 > json.length()) {
+						throw new IllegalArgumentException("Malformed JSON: bad escape");
+					}
+					try {
+						s.append((char) Integer.parseInt(json.substring(pos[0], pos[0] + 4), 16));
+					} catch (NumberFormatException ex) {
+						throw new IllegalArgumentException("Malformed JSON: bad escape");
+					}
+					pos[0] += 4;
+					break;
+				default:
+					s.append(e);
+				}
+			}
+		}
+	}
+
+	private static void expect(String json, int[] pos, char c) {
+		if (peek(json, pos) != c) {
+			throw new IllegalArgumentException("Malformed JSON: expected '" + c + "' at " + pos[0]);
+		}
+		pos[0]++;
+	}
+
+	/**
+	 * Skip white space, and return the next character, or 0 at the end.
+	 */
+	private static char peek(String json, int[] pos) {
+		pos[0] = skipSpace(json, pos[0]);
+		return (pos[0] < json.length()) ? json.charAt(pos[0]) : 0;
+	}
+
+	private static int skipSpace(String json, int pos) {
+		while ((pos < json.length()) && Character.isWhitespace(json.charAt(pos))) {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Quote a string for JSON.
+	 */
+	static String quote(String s) {
+
+		StringBuilder quoted = new StringBuilder("\"");
+
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+
+			if ((c == '"') || (c == '\\')) {
+				quoted.append('\\').append(c);
+			} else if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+
+		return quoted.append('"').toString();
+	}
+
+	/**
+	 * A histogram of request latencies. The buckets grow exponentially, so
+	 * percentiles are estimated by the upper bound of their bucket.
+	 */
+	private static class LatencyHistogram {
+
+		/**
+		 * The upper bounds of the buckets, in milliseconds. The last bucket
+		 * has no bound.
+		 */
+		private static final double[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000 };
+
+		private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong truncated = new AtomicLong();
+		private final AtomicLong sumMicros = new AtomicLong();
+		private final AtomicLong maxMicros = new AtomicLong();
+
+		private void add(double millis, boolean truncated) {
+
+			int b = 0;
+
+			while ((b < BOUNDS.length) && (millis > BOUNDS[b])) {
+				b++;
+			}
+
+			long micros = (long) (millis * 1000);
+
+			this.counts.incrementAndGet(b);
+			this.count.incrementAndGet();
+			this.sumMicros.addAndGet(micros);
+
+			long max;
+
+			while ((max = this.maxMicros.get()) < micros && !this.maxMicros.compareAndSet(max, micros)) {
+			}
+
+			if (truncated) {
+				this.truncated.incrementAndGet();
+			}
+		}
+
+		/**
+		 * Estimate a percentile by the upper bound of its bucket.
+		 */
+		private double getPercentile(long[] counts, long count, double percentile) {
+
+			long rank = (long) Math.ceil(percentile * count);
+			long seen = 0;
+
+			for (int b = 0; b < BOUNDS.length; b++) {
+				seen += counts[b];
+				if (seen >= rank) {
+					return BOUNDS[b];
+				}
+			}
+
+			return this.maxMicros.get() / 1000.0;
+		}
+
+		private void toJson(StringBuilder json) {
+
+			long[] counts = new long[this.counts.length()];
+			long count = 0;
+
+			for (int b = 0; b < counts.length; b++) {
+				counts[b] = this.counts.get(b);
+				count += counts[b];
+			}
+
+			json.append("{\"count\": ").append(count).append(", \"truncated\": ").append(this.truncated.get());
+
+			if (count > 0) {
+				json.append(", \"meanMs\": ").append(this.sumMicros.get() / 1000.0 / count)
+						.append(", \"maxMs\": ").append(this.maxMicros.get() / 1000.0)
+						.append(", \"p50Ms\": ").append(this.getPercentile(counts, count, 0.50))
+						.append(", \"p95Ms\": ").append(this.getPercentile(counts, count, 0.95))
+						.append(", \"p99Ms\": ").append(this.getPercentile(counts, count, 0.99));
+			}
+
+			json.append(", \"buckets\": {");
+
+			for (int b = 0; b < counts.length; b++) {
+				json.append((b > 0) ? ", " : "").append('"')
+						.append((b < BOUNDS.length) ? String.valueOf((long) BOUNDS[b]) : "+Inf").append("\": ")
+						.append(counts[b]);
+			}
+
+			json.append("}}");
+		}
+	}
+}
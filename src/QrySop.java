@@ -32,13 +32,42 @@ public abstract class QrySop extends Qry {
    *  is fully evaluated, and the results are stored in an internal
    *  inverted list that may be accessed via the internal iterator.
    *  @param r A retrieval model that guides initialization
+   *  @param index The index to search.
    *  @throws IOException Error accessing the Lucene index.
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(RetrievalModel r, IndexContext index) throws IOException {
+    this.index = index;
+
     for (Qry q_i: this.args) {
-      q_i.initialize (r);
+      q_i.initialize (r, index);
     }
   }
 
 public abstract double getDefaultScore(RetrievalModel r, int docIdMin) throws IOException;
+
+  /**
+   *  Get the log of the score for the document that docIteratorHasMatch
+   *  matched.  Operators that combine their arguments' scores by
+   *  multiplication (e.g., the Indri #AND) override this to add their
+   *  arguments' log scores, so that a query tree is scored in log space
+   *  and only its root exponentiates.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogScore (RetrievalModel r) throws IOException {
+    return Math.log (this.getScore (r));
+  }
+
+  /**
+   *  Get the log of the default score of a document that the query
+   *  operator doesn't match.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docIdMin The internal docid of the document.
+   *  @return The log of the default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getDefaultLogScore (RetrievalModel r, int docIdMin) throws IOException {
+    return Math.log (this.getDefaultScore (r, docIdMin));
+  }
 }
@@ -15,6 +15,9 @@ public class QrySopAnd extends QrySop {
 		} else if(r instanceof RetrievalModelRankedBoolean) {
 			return this.getScoreRankedBoolean(r);
 		} else if(r instanceof RetrievalModelIndri) {
+			if (((RetrievalModelIndri) r).isLogSpace()) {
+				return Math.exp(this.getLogScoreIndri(r));
+			}
 			return this.getScoreIndri(r);
 		} else {
 			throw new IllegalArgumentException(r.getClass().getName()
@@ -45,6 +48,9 @@ public class QrySopAnd extends QrySop {
 	@Override
 	public double getDefaultScore(RetrievalModel r, int docIdMin) throws IOException {
 		if (r instanceof RetrievalModelIndri) {
+			if (((RetrievalModelIndri) r).isLogSpace()) {
+				return Math.exp(this.getDefaultLogScoreIndri(r, docIdMin));
+			}
 			return this.getDefaultScoreIndri(r, docIdMin);
 		} else {
 			throw new IllegalArgumentException(r.getClass().getName()
@@ -52,6 +58,24 @@ public class QrySopAnd extends QrySop {
 		}
 	}
 	
+	@Override
+	public double getLogScore(RetrievalModel r) throws IOException {
+		if ((r instanceof RetrievalModelIndri) && ((RetrievalModelIndri) r).isLogSpace()) {
+			return this.getLogScoreIndri(r);
+		} else {
+			return super.getLogScore(r);
+		}
+	}
+	
+	@Override
+	public double getDefaultLogScore(RetrievalModel r, int docIdMin) throws IOException {
+		if ((r instanceof RetrievalModelIndri) && ((RetrievalModelIndri) r).isLogSpace()) {
+			return this.getDefaultLogScoreIndri(r, docIdMin);
+		} else {
+			return super.getDefaultLogScore(r, docIdMin);
+		}
+	}
+	
 	/**
 	 * getScore for the UnrankedBoolean retrieval model.
 	 * 
@@ -132,4 +156,40 @@ public class QrySopAnd extends QrySop {
 		return score;
 	}
 	
+	/**
+	 * getScoreIndri in log space: the mean of the arguments' log scores.
+	 * 
+	 * @param r
+	 *            The retrieval model that determines how scores are calculated.
+	 * @return The log of the document score.
+	 * @throws IOException
+	 *             Error accessing the Lucene index
+	 */
+	private double getLogScoreIndri(RetrievalModel r) throws IOException {
+		int docIdMin = this.docIteratorGetMatch();
+		double logScore = 0.0;
+		double q_abs_inverse = 1.0 / (double)this.args.size();
+		for(int i = 0; i < this.args.size(); i++) {
+			QrySop q_i = (QrySop) this.args.get(i);
+			double q_iLogScore;
+			if (q_i.docIteratorHasMatch(r) && (q_i.docIteratorGetMatch() == docIdMin)) {
+				q_iLogScore = q_i.getLogScore(r);
+			} else {
+				q_iLogScore = q_i.getDefaultLogScore(r, docIdMin);
+			}
+			logScore = logScore + q_abs_inverse * q_iLogScore;
+		}
+		return logScore;
+	}
+	
+	private double getDefaultLogScoreIndri(RetrievalModel r, int docIdMin) throws IOException {
+		double logScore = 0.0;
+		double q_abs_inverse = 1.0 / (double)this.args.size();
+		for(int i = 0; i < this.args.size(); i++) {
+			QrySop q_i = (QrySop)this.args.get(i);
+			logScore = logScore + q_abs_inverse * q_i.getDefaultLogScore(r, docIdMin);
+		}
+		return logScore;
+	}
+	
 }
@@ -15,6 +15,32 @@ public class QrySopScore extends QrySop {
 	 * retrieval models have these, some don't.
 	 */
 
+	/**
+	 * Collection statistics of the argument's field.
+	 */
+	private FieldStats fieldStats;
+
+	/**
+	 * The ordinal of the argument's field, for document length lookups.
+	 */
+	private int fieldOrdinal;
+
+	/**
+	 * BM25 values: the idf and query weight of the argument, and the length
+	 * normalization of its field.
+	 */
+	private double bm25Idf;
+	private double bm25QueryWeight;
+	private double[] bm25LengthNorms;
+
+	/**
+	 * Indri values: the parts of the smoothed probability that depend only
+	 * on the argument's collection probability.
+	 */
+	private double indriMuPMleC;
+	private double indriLambdaPMleC;
+	private double indriOneMinusLambda;
+
 	/**
 	 * Indicates whether the query has a match.
 	 * 
@@ -80,8 +106,7 @@ public class QrySopScore extends QrySop {
 	
 	public double getScoreRankedBoolean(RetrievalModel r) throws IOException {
 		QryIop query = (QryIop) this.args.get(0);
-		InvList.DocPosting posting = query.docIteratorGetMatchPosting();
-		return (double)posting.tf;
+		return (double)query.docIteratorGetMatchTf();
 	}
 
 	/**
@@ -94,27 +119,83 @@ public class QrySopScore extends QrySop {
 	 * 				Error accessing the Lucene index
 	 * */
 	public double getScoreBM25(RetrievalModel r) throws IOException {
+		RetrievalModelBM25 BM25 = (RetrievalModelBM25)r;
+		QryIop query = (QryIop)this.args.get(0);
+		double tfTD = (double)query.docIteratorGetMatchTf();
+		int docId = query.docIteratorGetMatch();
+		int docLen = this.index.getFieldLength(this.fieldOrdinal, docId);
+		double termWeight = tfTD / (tfTD + BM25.getLengthNorm(this.bm25LengthNorms, this.fieldStats, docLen));
+		return this.bm25Idf * termWeight * this.bm25QueryWeight;
+	}
+	
+	/**
+	 * An upper bound on getScoreBM25 for any document that matches the
+	 * argument. The term weight grows with tf, and a document's length is at
+	 * least the term's tf, so for a term the bound uses maxTf as both tf and
+	 * document length. Other operators (e.g., #SYN) can match more positions
+	 * than a document has tokens, so their bound assumes a document length
+	 * of 0.
+	 * 
+	 * @param r
+	 *            The retrieval model that determines how scores are calculated.
+	 * @return The maximum document score.
+	 * @throws IOException
+	 *             Error accessing the Lucene index
+	 */
+	public double getMaxScoreBM25(RetrievalModel r) throws IOException {
+		QryIop query = (QryIop)this.args.get(0);
+		if (query.getDf() == 0) {
+			return 0;
+		}
+		int maxTf = query.getMaxTf();
+		int minDocLen = (query instanceof QryIopTerm) ? maxTf : 0;
+		return this.getMaxScoreBM25(r, maxTf, minDocLen);
+	}
+	
+	/**
+	 * An upper bound on getScoreBM25 for documents whose tf is at most maxTf
+	 * and whose length is at least minDocLen.
+	 * 
+	 * @param r
+	 *            The retrieval model that determines how scores are calculated.
+	 * @param maxTf
+	 *            The largest possible tf.
+	 * @param minDocLen
+	 *            The smallest possible document length.
+	 * @return The maximum document score.
+	 * @throws IOException
+	 *             Error accessing the Lucene index
+	 */
+	public double getMaxScoreBM25(RetrievalModel r, int maxTf, int minDocLen) throws IOException {
 		RetrievalModelBM25 BM25 = (RetrievalModelBM25)r;
 		double k_1 = BM25.getK_1();
 		double b = BM25.getB();
 		double k_3 = BM25.getK_3();
 		double qtf = 1;
-		QryIop query = (QryIop)this.args.get(0);
-		InvList.DocPosting posting = query.docIteratorGetMatchPosting();
-		double tfTD = (double)posting.tf;
-		int docId = posting.docid;
-		double dfT = (double)query.invertedList.df;
-		double N = (double)Idx.getNumDocs();
-		double docCount = (double)Idx.getDocCount(query.field);
-		double docLenD = (double)Idx.getFieldLength(query.field, docId);
-		double totalDocLen = (double)Idx.getSumOfFieldLengths(query.field);
-		double avgDocLen = totalDocLen / docCount;
-		double idf = Math.max(0, Math.log((N - dfT + 0.5) / (dfT + 0.5)));
+		double tfTD = (double)maxTf;
+		double docLenD = (double)minDocLen;
+		double avgDocLen = this.fieldStats.avgFieldLength;
+		double idf = this.bm25Idf;
 		double termWeight = tfTD / (tfTD + k_1 * ((1 - b) + b * docLenD / avgDocLen));
 		double queryWeight = (k_3 + 1) * qtf / (k_3 + qtf);
 		return idf * termWeight * queryWeight;
 	}
 	
+	/**
+	 * Get the block statistics of the argument's inverted list, if the index
+	 * has them (see BlockMaxIndex). Only terms are summarized.
+	 * 
+	 * @return The blocks, or null.
+	 */
+	public BlockMaxIndex.Blocks getBlockMaxBlocks() {
+		Qry query = this.args.get(0);
+		if (query instanceof QryIopTerm) {
+			return ((QryIopTerm) query).getBlockMaxBlocks();
+		} else {
+			return null;
+		}
+	}
+	
 	/**
 	 * getScore for the Indri retrieval model.
 	 * 
@@ -127,17 +208,12 @@ public class QrySopScore extends QrySop {
 	public double getScoreIndri(RetrievalModel r) throws IOException {
 		RetrievalModelIndri Indri = (RetrievalModelIndri)r;
 		double mu = Indri.getMu();
-		double lambda = Indri.getLambda();
 		QryIop query = (QryIop)this.args.get(0);
-		InvList.DocPosting posting = query.docIteratorGetMatchPosting();
-		double tf = (double)posting.tf;
-		int docId = posting.docid;
-		double lengthTokens = (double)Idx.getSumOfFieldLengths(query.field);
-		double docLen = (double)Idx.getFieldLength(query.field, docId);
-		double ctf = (double)query.invertedList.ctf;	
-		double p_MLE_Qi_C = ctf / lengthTokens;
-		double p_MLE_Qi_d = (tf + mu * p_MLE_Qi_C) / (docLen + mu);
-		double score = (1 - lambda) * p_MLE_Qi_d + lambda * p_MLE_Qi_C;
+		double tf = (double)query.docIteratorGetMatchTf();
+		int docId = query.docIteratorGetMatch();
+		double docLen = (double)this.index.getFieldLength(this.fieldOrdinal, docId);
+		double p_MLE_Qi_d = (tf + this.indriMuPMleC) / (docLen + mu);
+		double score = this.indriOneMinusLambda * p_MLE_Qi_d + this.indriLambdaPMleC;
 		return score;
 	}
 	
@@ -151,15 +227,10 @@ public class QrySopScore extends QrySop {
 		
 		RetrievalModelIndri Indri = (RetrievalModelIndri)r;
 		double mu = Indri.getMu();
-		double lambda = Indri.getLambda();
-		QryIop query = (QryIop)this.args.get(0);
 		double defaultTf = 0;
-		double lengthTokens = (double)Idx.getSumOfFieldLengths(query.field);
-		double docLen = (double)Idx.getFieldLength(query.field, docid1);
-		double ctf = (double)query.invertedList.ctf;
-		double p_MLE_Qi_C = ctf / lengthTokens;
-		double p_MLE_Qi_d = (defaultTf + mu * p_MLE_Qi_C) / (docLen + mu);
-		double score = (1 - lambda) * p_MLE_Qi_d + lambda * p_MLE_Qi_C;
+		double docLen = (double)this.index.getFieldLength(this.fieldOrdinal, docid1);
+		double p_MLE_Qi_d = (defaultTf + this.indriMuPMleC) / (docLen + mu);
+		double score = this.indriOneMinusLambda * p_MLE_Qi_d + this.indriLambdaPMleC;
 		return score;
 	}
 	
@@ -171,13 +242,63 @@ public class QrySopScore extends QrySop {
 	 * 
 	 * @param r
 	 *            A retrieval model that guides initialization
+	 * @param index
+	 *            The index to search.
 	 * @throws IOException
 	 *             Error accessing the Lucene index.
 	 */
-	public void initialize(RetrievalModel r) throws IOException {
+	public void initialize(RetrievalModel r, IndexContext index) throws IOException {
+
+		this.index = index;
 
 		Qry q = this.args.get(0);
-		q.initialize(r);
+
+		// Scores only need term frequencies, so a streaming term that is
+		// scored directly doesn't need to decode positions.
+
+		if (q instanceof QryIopTerm) {
+			((QryIopTerm) q).setNeedsPositions(false);
+		}
+
+		// Collection statistics may be shared by several indexes (see
+		// CollectionStats).  They are read first, because reading them
+		// may evaluate the argument in other indexes.
+
+		CollectionStats collectionStats = r.getCollectionStats();
+		long[] stats = null;
+
+		if ((collectionStats != null)
+				&& ((r instanceof RetrievalModelBM25) || (r instanceof RetrievalModelIndri))) {
+			stats = collectionStats.getStats((QryIop) q, r);
+			this.fieldStats = collectionStats.getFieldStats(((QryIop) q).field);
+		} else {
+			this.fieldStats = index.getFieldStats(((QryIop) q).field);
+		}
+
+		q.initialize(r, index);
+
+		this.fieldOrdinal = index.getFieldOrdinal(((QryIop) q).field);
+
+		if (r instanceof RetrievalModelBM25) {
+			RetrievalModelBM25 BM25 = (RetrievalModelBM25)r;
+			double k_3 = BM25.getK_3();
+			double qtf = 1;
+			double dfT = (stats != null) ? (double)stats[0] : (double)((QryIop) q).getDf();
+			double N = (double)this.fieldStats.numDocs;
+			this.bm25Idf = Math.max(0, Math.log((N - dfT + 0.5) / (dfT + 0.5)));
+			this.bm25QueryWeight = (k_3 + 1) * qtf / (k_3 + qtf);
+			this.bm25LengthNorms = BM25.getLengthNorms(this.fieldStats);
+		} else if (r instanceof RetrievalModelIndri) {
+			RetrievalModelIndri Indri = (RetrievalModelIndri)r;
+			double mu = Indri.getMu();
+			double lambda = Indri.getLambda();
+			double lengthTokens = (double)this.fieldStats.sumOfFieldLengths;
+			double ctf = (stats != null) ? (double)stats[1] : (double)((QryIop) q).getCtf();
+			double p_MLE_Qi_C = ctf / lengthTokens;
+			this.indriMuPMleC = mu * p_MLE_Qi_C;
+			this.indriLambdaPMleC = lambda * p_MLE_Qi_C;
+			this.indriOneMinusLambda = 1 - lambda;
+		}
 	}
 	
 	public int getTermFrequency(int docId) {
@@ -1,7 +1,14 @@
 import java.io.IOException;
+import java.util.*;
 
 public class QrySopSum extends QrySop{
 
+	/**
+	 * Upper bounds are inflated by this factor so that rounding differences
+	 * between a bound and the actual score never prune a document.
+	 */
+	private static final double UPPER_BOUND_SLACK = 1.0 + 1e-9;
+
 	@Override
 	public double getScore(RetrievalModel r) throws IOException {
 		if (r instanceof RetrievalModelBM25) {
@@ -34,6 +41,279 @@ public class QrySopSum extends QrySop{
 		return docIdScore;
 	}
 
+	/**
+	 * Can getTopKBM25 evaluate this query? The upper bounds that MaxScore
+	 * needs are only known for #SCORE arguments.
+	 *
+	 * @return True if every argument is a #SCORE operator.
+	 */
+	public boolean canPrune() {
+		for (Qry q_i : this.args) {
+			if (!(q_i instanceof QrySopScore)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Evaluate the query under BM25 and return just the top k documents,
+	 * using the MaxScore dynamic pruning algorithm. The arguments are sorted
+	 * by their maximum scores. Once the top k heap is full, a prefix of the
+	 * low-scoring arguments can't put a document into the top k by
+	 * themselves; those arguments are "non-essential". Candidate documents
+	 * come only from the essential arguments, and non-essential arguments
+	 * are checked (highest bound first) only while the candidate can still
+	 * reach the threshold.
+	 * <p>
+	 * With block-max pruning, arguments whose inverted lists are summarized
+	 * by the index's BlockMaxIndex are bounded by the block that contains the
+	 * candidate rather than by the whole list. If the block bounds of all
+	 * arguments can't reach the threshold, every document up to the end of
+	 * the nearest block is skipped.
+	 * </p>
+	 * <p>
+	 * Scores are summed in the same order as getScoreBM25, so the documents
+	 * and scores returned are identical to those of exhaustive evaluation.
+	 * Documents tied with the k'th document are also returned. The query
+	 * must have been initialized, and canPrune must be true.
+	 * </p>
+	 *
+	 * @param r
+	 *            The BM25 retrieval model.
+	 * @param k
+	 *            The number of documents needed.
+	 * @return The top documents, unsorted.
+	 * @throws IOException
+	 *             Error accessing the Lucene index
+	 */
+	public ScoreList getTopKBM25(RetrievalModel r, int k) throws IOException {
+
+		int n = this.args.size();
+		final double[] maxScores = new double[n];
+
+		for (int i = 0; i < n; i++) {
+			maxScores[i] = ((QrySopScore) this.args.get(i)).getMaxScoreBM25(r) * UPPER_BOUND_SLACK;
+		}
+
+		// Order the arguments by maximum score. prefixMaxScores[p] bounds the
+		// score that arguments order[0..p] can contribute together.
+
+		Integer[] sorted = new Integer[n];
+
+		for (int i = 0; i < n; i++) {
+			sorted[i] = i;
+		}
+
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				return Double.compare(maxScores[i1], maxScores[i2]);
+			}
+		});
+
+		QrySop[] order = new QrySop[n];
+		int[] orderIndex = new int[n];
+		double[] prefixMaxScores = new double[n];
+
+		for (int p = 0; p < n; p++) {
+			orderIndex[p] = sorted[p];
+			order[p] = (QrySop) this.args.get(sorted[p]);
+			prefixMaxScores[p] = maxScores[sorted[p]] + ((p > 0) ? prefixMaxScores[p - 1] : 0);
+		}
+
+		// Block-max cursors for the arguments that have block statistics.
+
+		BlockMaxCursor[] cursors = null;
+
+		if (((RetrievalModelBM25) r).getPruning() == RetrievalModelBM25.Pruning.BLOCKMAX) {
+			cursors = new BlockMaxCursor[n];
+
+			for (int p = 0; p < n; p++) {
+				BlockMaxIndex.Blocks blocks = ((QrySopScore) order[p]).getBlockMaxBlocks();
+				if (blocks != null) {
+					cursors[p] = new BlockMaxCursor((QrySopScore) order[p], blocks);
+				}
+			}
+		}
+
+		TopKCollector topK = new TopKCollector(k, this.index);
+		double[] argScores = new double[n];
+		double[] blockPrefixMaxScores = new double[n];
+		int firstEssential = 0;
+		Deadline deadline = Deadline.getCurrent();
+
+		while (true) {
+
+			// The next candidate is the smallest docid of an essential
+			// argument.
+
+			int docid = Qry.INVALID_DOCID;
+
+			for (int p = firstEssential; p < n; p++) {
+				if (order[p].docIteratorHasMatch(r)) {
+					int d = order[p].docIteratorGetMatch();
+					if ((docid == Qry.INVALID_DOCID) || (d < docid)) {
+						docid = d;
+					}
+				}
+			}
+
+			if ((docid == Qry.INVALID_DOCID) || ((deadline != null) && deadline.isReached())) {
+				break;
+			}
+
+			// Bound the candidate's score by the blocks that contain it. If
+			// the bound is too low, the other documents in those blocks can
+			// be skipped too.
+
+			double[] candidatePrefixMaxScores = prefixMaxScores;
+
+			if ((cursors != null) && topK.isFull()) {
+				candidatePrefixMaxScores = blockPrefixMaxScores;
+				int lastDocid = Integer.MAX_VALUE;
+
+				for (int p = 0; p < n; p++) {
+					double maxScore = maxScores[orderIndex[p]];
+
+					if (cursors[p] != null) {
+						maxScore = cursors[p].advanceTo(r, docid);
+						lastDocid = Math.min(lastDocid, cursors[p].getLastDocid());
+					}
+
+					candidatePrefixMaxScores[p] = maxScore + ((p > 0) ? candidatePrefixMaxScores[p - 1] : 0);
+				}
+
+				if (candidatePrefixMaxScores[n - 1] < topK.getThreshold()) {
+					if (lastDocid == Integer.MAX_VALUE) {
+						break;
+					}
+
+					for (int p = firstEssential; p < n; p++) {
+						order[p].docIteratorAdvancePast(lastDocid);
+					}
+					continue;
+				}
+			}
+
+			Arrays.fill(argScores, 0.0);
+			double score = 0;
+
+			for (int p = firstEssential; p < n; p++) {
+				if (order[p].docIteratorHasMatch(r) && (order[p].docIteratorGetMatch() == docid)) {
+					argScores[orderIndex[p]] = order[p].getScore(r);
+					score += argScores[orderIndex[p]];
+				}
+			}
+
+			boolean pruned = false;
+
+			for (int p = firstEssential - 1; p >= 0; p--) {
+				if (score + candidatePrefixMaxScores[p] < topK.getThreshold()) {
+					pruned = true;
+					break;
+				}
+
+				order[p].docIteratorAdvanceTo(docid);
+
+				if (order[p].docIteratorHasMatch(r) && (order[p].docIteratorGetMatch() == docid)) {
+					argScores[orderIndex[p]] = order[p].getScore(r);
+					score += argScores[orderIndex[p]];
+				}
+			}
+
+			if (!pruned) {
+				double docIdScore = 0;
+				for (int i = 0; i < n; i++) {
+					if (argScores[i] != 0) {
+						docIdScore = docIdScore + argScores[i];
+					}
+				}
+				topK.add(docid, docIdScore);
+
+				while ((firstEssential < n) && (prefixMaxScores[firstEssential] < topK.getThreshold())) {
+					firstEssential++;
+				}
+			}
+
+			for (int p = firstEssential; p < n; p++) {
+				order[p].docIteratorAdvancePast(docid);
+			}
+		}
+
+		return topK.getScoreList();
+	}
+
+	/**
+	 * Walks forward over the blocks of an argument's inverted list, and
+	 * bounds the argument's score for documents in the current block.
+	 */
+	private static class BlockMaxCursor {
+
+		private QrySopScore arg;
+		private BlockMaxIndex.Blocks blocks;
+		private int block = -1;
+		private double maxScore = 0;
+
+		private BlockMaxCursor(QrySopScore arg, BlockMaxIndex.Blocks blocks) {
+			this.arg = arg;
+			this.blocks = blocks;
+		}
+
+		/**
+		 * Move to the block that would contain docid. Cursors only move
+		 * forward.
+		 *
+		 * @param r
+		 *            The BM25 retrieval model.
+		 * @param docid
+		 *            The document's internal document id.
+		 * @return The maximum score of a document in the block, or 0 if the
+		 *         inverted list has no documents at or after docid.
+		 * @throws IOException
+		 *             Error accessing the Lucene index
+		 */
+		private double advanceTo(RetrievalModel r, int docid) throws IOException {
+
+			int b = Math.max(this.block, 0);
+
+			if ((b < this.blocks.size()) && (this.blocks.lastDocids[b] < docid)) {
+				b = Arrays.binarySearch(this.blocks.lastDocids, b, this.blocks.size(), docid);
+				if (b < 0) {
+					b = -b - 1;
+				}
+			}
+
+			if (b != this.block) {
+				this.block = b;
+
+				if (b < this.blocks.size()) {
+
+					// A document's length is at least its tf.
+
+					int maxTf = this.blocks.maxTfs[b];
+					int minDocLen = Math.max(maxTf, this.blocks.minLengths[b]);
+					this.maxScore = this.arg.getMaxScoreBM25(r, maxTf, minDocLen) * UPPER_BOUND_SLACK;
+				}
+			}
+
+			return (this.block < this.blocks.size()) ? this.maxScore : 0;
+		}
+
+		/**
+		 * Get the last docid of the current block.
+		 *
+		 * @return The last docid, or Integer.MAX_VALUE if the cursor is past
+		 *         the last block.
+		 */
+		private int getLastDocid() {
+			if (this.block < this.blocks.size()) {
+				return this.blocks.lastDocids[this.block];
+			} else {
+				return Integer.MAX_VALUE;
+			}
+		}
+	}
+
 	@Override
 	public double getDefaultScore(RetrievalModel r, int docIdMin) throws IOException {
 		// TODO Auto-generated method stub
@@ -5,16 +5,24 @@ import java.util.List;
 public class QrySopWAnd extends QrySop {
 	
 	private ArrayList<String> weightTmp;
-	private ArrayList<Double> weights;
+	
+	/**
+	 * The weight of each argument, divided by the total weight. Set by
+	 * initialize, so that weights are parsed once per query, not once per
+	 * document.
+	 */
+	private double[] weights;
 	
 	public QrySopWAnd() {
-		this.weights = new ArrayList<Double>();
 		this.weightTmp = new ArrayList<String>();
 	}
 	
 	@Override
 	public double getScore(RetrievalModel r) throws IOException {
 		if (r instanceof RetrievalModelIndri) {
+			if (((RetrievalModelIndri) r).isLogSpace()) {
+				return Math.exp(this.getLogScoreIndri(r));
+			}
 			return this.getScoreIndri(r);
 		} else {
 			throw new IllegalArgumentException(r.getClass().getName()
@@ -25,12 +33,33 @@ public class QrySopWAnd extends QrySop {
 	@Override
 	public double getDefaultScore(RetrievalModel r, int docIdMin) throws IOException {
 		if (r instanceof RetrievalModelIndri) {
+			if (((RetrievalModelIndri) r).isLogSpace()) {
+				return Math.exp(this.getDefaultLogScoreIndri(r, docIdMin));
+			}
 			return this.getDefaultScoreIndri(r, docIdMin);
 		} else {
 			throw new IllegalArgumentException(r.getClass().getName()
 					+ " doesn't support the OR operator.");
 		}
 	}
+	
+	@Override
+	public double getLogScore(RetrievalModel r) throws IOException {
+		if ((r instanceof RetrievalModelIndri) && ((RetrievalModelIndri) r).isLogSpace()) {
+			return this.getLogScoreIndri(r);
+		} else {
+			return super.getLogScore(r);
+		}
+	}
+	
+	@Override
+	public double getDefaultLogScore(RetrievalModel r, int docIdMin) throws IOException {
+		if ((r instanceof RetrievalModelIndri) && ((RetrievalModelIndri) r).isLogSpace()) {
+			return this.getDefaultLogScoreIndri(r, docIdMin);
+		} else {
+			return super.getDefaultLogScore(r, docIdMin);
+		}
+	}
 	@Override
 	public boolean docIteratorHasMatch(RetrievalModel r) {
 		if (r instanceof RetrievalModelIndri) {
@@ -44,7 +73,6 @@ public class QrySopWAnd extends QrySop {
 	private double getScoreIndri(RetrievalModel r) throws IOException {
 		int docIdMin = this.docIteratorGetMatch();
 		double score = 1.0;
-		double totalWeight = this.processWeights();
 		
 		for(int i = 0; i < this.args.size(); i++) {
 			QrySop q_i = (QrySop) this.args.get(i);
@@ -60,7 +88,7 @@ public class QrySopWAnd extends QrySop {
 			} else {
 				q_iDocScore = q_i.getDefaultScore(r, docIdMin);
 			}
-			double weight_inverse = this.weights.get(i) / totalWeight;
+			double weight_inverse = this.weights[i];
 			score = score * Math.pow(q_iDocScore, weight_inverse);
 		}
 		
@@ -69,25 +97,74 @@ public class QrySopWAnd extends QrySop {
 	
 	private double getDefaultScoreIndri(RetrievalModel r, int docIdMin) throws IOException {
 		double score = 1.0;
-		double totalWeight = this.processWeights();
 		for(int i = 0; i < this.args.size(); i++) {
 			QrySop q_i = (QrySop) this.args.get(i);
 			double q_iDocScore = q_i.getDefaultScore(r, docIdMin);
 			
-			double weight_inverse = this.weights.get(i) / totalWeight;
+			double weight_inverse = this.weights[i];
 			score = score * Math.pow(q_iDocScore, weight_inverse);
 		}
 		return score;
 	}
 	
-	private double processWeights() {
-		double totalWeights = 0.0;
-		for(int i = 0; i < this.weightTmp.size(); i++) {
-			double weight = Double.parseDouble(this.weightTmp.get(i));
-			this.weights.add(weight);
-			totalWeights = totalWeights + weight;
+	/**
+	 * getScoreIndri in log space: the weighted mean of the arguments' log
+	 * scores.
+	 */
+	private double getLogScoreIndri(RetrievalModel r) throws IOException {
+		int docIdMin = this.docIteratorGetMatch();
+		double logScore = 0.0;
+		
+		for(int i = 0; i < this.args.size(); i++) {
+			QrySop q_i = (QrySop) this.args.get(i);
+			double q_iLogScore;
+			if (q_i.docIteratorHasMatch(r) && (q_i.docIteratorGetMatch() == docIdMin)) {
+				q_iLogScore = q_i.getLogScore(r);
+			} else {
+				q_iLogScore = q_i.getDefaultLogScore(r, docIdMin);
+			}
+			double weight_inverse = this.weights[i];
+			logScore = logScore + weight_inverse * q_iLogScore;
+		}
+		
+		return logScore;
+	}
+	
+	private double getDefaultLogScoreIndri(RetrievalModel r, int docIdMin) throws IOException {
+		double logScore = 0.0;
+		for(int i = 0; i < this.args.size(); i++) {
+			QrySop q_i = (QrySop) this.args.get(i);
+			double weight_inverse = this.weights[i];
+			logScore = logScore + weight_inverse * q_i.getDefaultLogScore(r, docIdMin);
+		}
+		return logScore;
+	}
+	
+	/**
+	 * Initialize the query operator (and its arguments), and normalize the
+	 * weights of its arguments.
+	 * 
+	 * @param r
+	 *            A retrieval model that guides initialization
+	 * @param index
+	 *            The index to search.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	@Override
+	public void initialize(RetrievalModel r, IndexContext index) throws IOException {
+		super.initialize(r, index);
+		
+		double totalWeight = 0.0;
+		double[] weights = new double[this.weightTmp.size()];
+		for(int i = 0; i < weights.length; i++) {
+			weights[i] = Double.parseDouble(this.weightTmp.get(i));
+			totalWeight = totalWeight + weights[i];
+		}
+		for(int i = 0; i < weights.length; i++) {
+			weights[i] = weights[i] / totalWeight;
 		}
-		return totalWeights;
+		this.weights = weights;
 	}
 	
 	public void appendWeights(String weight) {
@@ -4,11 +4,16 @@ import java.util.ArrayList;
 public class QrySopWSum extends QrySop{
 	
 	ArrayList<String> weightTmp;
-	ArrayList<Double> weights;
+	
+	/**
+	 * The weight of each argument, divided by the total weight. Set by
+	 * initialize, so that weights are parsed once per query, not once per
+	 * document.
+	 */
+	double[] weights;
 	
 	public QrySopWSum() {
 		this.weightTmp = new ArrayList<String>();
-		this.weights = new ArrayList<Double>();
 	}
 
 	@Override
@@ -39,7 +44,6 @@ public class QrySopWSum extends QrySop{
 	public double getScoreIndri(RetrievalModel r) throws IOException {
 		int docIdMin = this.docIteratorGetMatch();
 		double score = 0;
-		double totalWeight = this.processWeights();
 		
 //		String externalId = Idx.getExternalDocid(docIdMin);
 //		if(externalId.equals("GX087-45-11201910")) {
@@ -60,7 +64,7 @@ public class QrySopWSum extends QrySop{
 			} else {
 				q_iDocScore = q_i.getDefaultScore(r, docIdMin);
 			}
-			double weightFraction = this.weights.get(i) / totalWeight;
+			double weightFraction = this.weights[i];
 			score = score + weightFraction * q_iDocScore;
 		}
 		return score;
@@ -68,24 +72,40 @@ public class QrySopWSum extends QrySop{
 	
 	private double getDefaultScoreIndri(RetrievalModel r, int docIdMin) throws IOException {
 		double score = 0;
-		double totalWeight = this.processWeights();
 		for(int i = 0; i < this.args.size(); i++) {
 			QrySop q_i = (QrySop) this.args.get(i);
 			double q_iDocScore = q_i.getDefaultScore(r, docIdMin);
-			double weightFraction = this.weights.get(i) / totalWeight;
+			double weightFraction = this.weights[i];
 			score = score + weightFraction * q_iDocScore;
 		}
 		return score;
 	}
 	
-	private double processWeights() {
-		double totalWeights = 0.0;
-		for(int i = 0; i < this.weightTmp.size(); i++) {
-			double weight = Double.parseDouble(this.weightTmp.get(i));
-			this.weights.add(weight);
-			totalWeights = totalWeights + weight;
+	/**
+	 * Initialize the query operator (and its arguments), and normalize the
+	 * weights of its arguments.
+	 * 
+	 * @param r
+	 *            A retrieval model that guides initialization
+	 * @param index
+	 *            The index to search.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	@Override
+	public void initialize(RetrievalModel r, IndexContext index) throws IOException {
+		super.initialize(r, index);
+		
+		double totalWeight = 0.0;
+		double[] weights = new double[this.weightTmp.size()];
+		for(int i = 0; i < weights.length; i++) {
+			weights[i] = Double.parseDouble(this.weightTmp.get(i));
+			totalWeight = totalWeight + weights[i];
+		}
+		for(int i = 0; i < weights.length; i++) {
+			weights[i] = weights[i] / totalWeight;
 		}
-		return totalWeights;
+		this.weights = weights;
 	}
 	
 	public void appendWeights(String weight) {
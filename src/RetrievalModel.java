@@ -10,10 +10,36 @@
  */
 public abstract class RetrievalModel {
 
+  /**
+   *  Collection statistics that override the statistics of the index
+   *  that is searched, or null.
+   */
+  private CollectionStats collectionStats = null;
+
   /**
    *  The name of the default query operator for the retrieval model.
    *  @return The name of the default query operator.
    */
   public abstract String defaultQrySopName ();
 
+  /**
+   *  Get the collection statistics that scores use instead of the
+   *  statistics of the index that is searched.
+   *  @return The statistics, or null to use the index's statistics.
+   */
+  public CollectionStats getCollectionStats () {
+    return this.collectionStats;
+  }
+
+  /**
+   *  Score documents with collection statistics of several indexes
+   *  (e.g., all of the shards of a corpus), so that scores from
+   *  different indexes are comparable.
+   *  @param collectionStats The statistics, or null to use the
+   *  statistics of the index that is searched.
+   */
+  public void setCollectionStats (CollectionStats collectionStats) {
+    this.collectionStats = collectionStats;
+  }
+
 }
@@ -1,6 +1,35 @@
 
+import java.util.*;
+
 public class RetrievalModelBM25 extends RetrievalModel {
 	
+	/**
+	 * Dynamic pruning strategies for top-k #SUM queries. NONE scores every
+	 * document that matches a query term. BLOCKMAX is MAXSCORE plus the
+	 * per-block bounds of a BlockMaxIndex, if the index has one.
+	 */
+	public enum Pruning {
+		NONE, MAXSCORE, BLOCKMAX
+	}
+	
+	private Pruning pruning = Pruning.NONE;
+	
+	/**
+	 * Length normalization tables cover documents up to this length; longer
+	 * documents are normalized directly.
+	 */
+	private static final int MAX_LENGTH_NORMS = 1 << 16;
+	
+	/**
+	 * The table of a field that no document has.
+	 */
+	private static final double[] EMPTY_LENGTH_NORMS = new double[0];
+	
+	/**
+	 * Length normalization tables, by field (of a particular index).
+	 */
+	private Map<FieldStats, double[]> lengthNorms = new IdentityHashMap<FieldStats, double[]>();
+	
 	private double k_1;
 	
 	private double b;
@@ -41,4 +70,69 @@ public class RetrievalModelBM25 extends RetrievalModel {
 	public double getK_3() {
 		return this.k_3;
 	}
+	
+	public Pruning getPruning() {
+		return this.pruning;
+	}
+	
+	public void setPruning(Pruning pruning) {
+		this.pruning = pruning;
+	}
+	
+	/**
+	 * Get a table of the BM25 length normalization,
+	 * k_1 * ((1 - b) + b * docLen / avgDocLen), for each document length of
+	 * a field, so that scoring doesn't recompute it for every posting. Tables
+	 * are built when they are first needed. A field that no document has
+	 * (docCount is 0) gets an empty table.
+	 * 
+	 * @param stats
+	 *            The collection statistics of the field.
+	 * @return The table, indexed by document length.
+	 */
+	public synchronized double[] getLengthNorms(FieldStats stats) {
+		if (stats.docCount == 0) {
+			return EMPTY_LENGTH_NORMS;
+		}
+		
+		double[] norms = this.lengthNorms.get(stats);
+		
+		if (norms == null) {
+			norms = new double[MAX_LENGTH_NORMS];
+			
+			for (int docLen = 0; docLen < norms.length; docLen++) {
+				norms[docLen] = this.getLengthNorm(stats, docLen);
+			}
+			
+			this.lengthNorms.put(stats, norms);
+		}
+		
+		return norms;
+	}
+	
+	/**
+	 * Get the BM25 length normalization of a document, from a table made by
+	 * getLengthNorms if the document isn't too long for it.
+	 * 
+	 * @param norms
+	 *            The field's table.
+	 * @param stats
+	 *            The collection statistics of the field.
+	 * @param docLen
+	 *            The length of the field in the document.
+	 * @return The length normalization.
+	 */
+	public double getLengthNorm(double[] norms, FieldStats stats, int docLen) {
+		if (docLen < norms.length) {
+			return norms[docLen];
+		} else {
+			return this.getLengthNorm(stats, docLen);
+		}
+	}
+	
+	private double getLengthNorm(FieldStats stats, int docLen) {
+		double docLenD = (double) docLen;
+		double avgDocLen = stats.avgFieldLength;
+		return this.k_1 * ((1 - this.b) + this.b * docLenD / avgDocLen);
+	}
 }
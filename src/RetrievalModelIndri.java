@@ -4,6 +4,11 @@ public class RetrievalModelIndri extends RetrievalModel{
 	
 	private double lambda;
 	
+	/**
+	 * Whether #AND and #WAND combine scores in log space.
+	 */
+	private boolean logSpace = false;
+	
 	public RetrievalModelIndri() {
 		this.mu = 2500;
 		this.lambda = 0.2;
@@ -22,6 +27,28 @@ public class RetrievalModelIndri extends RetrievalModel{
 		return this.lambda;
 	}
 	
+	/**
+	 * Does the model combine scores in log space?
+	 * 
+	 * @return True if #AND and #WAND add weighted log scores, and only the
+	 *         root of the query exponentiates the sum.
+	 */
+	public boolean isLogSpace() {
+		return this.logSpace;
+	}
+	
+	/**
+	 * Choose how #AND and #WAND combine scores. Log space avoids a Math.pow
+	 * per argument per document and doesn't underflow for long queries, but
+	 * its scores may differ from the default in the last few bits.
+	 * 
+	 * @param logSpace
+	 *            True to combine scores in log space.
+	 */
+	public void setLogSpace(boolean logSpace) {
+		this.logSpace = logSpace;
+	}
+	
 	@Override
 	public String defaultQrySopName() {
 		return new String("#and");
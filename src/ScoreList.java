@@ -11,22 +11,31 @@ import java.util.*;
 public class ScoreList {
 
 	// A utility class to create a <internalDocid, externalDocid, score>
-	// object.
+	// object. Looking up an external id is expensive, so it is done only
+	// when the external id is needed, e.g., to break a tie while sorting.
 
 	private class ScoreListEntry {
 		private int docid;
 		private String externalId;
 		private double score;
 
-		private ScoreListEntry(int internalDocid, double score) {
+		private ScoreListEntry(int internalDocid, String externalId,
+				double score) {
 			this.docid = internalDocid;
+			this.externalId = externalId;
 			this.score = score;
+		}
 
-			try {
-				this.externalId = Idx.getExternalDocid(this.docid);
-			} catch (IOException ex) {
-				ex.printStackTrace();
+		private String getExternalId() {
+			if (this.externalId == null) {
+				try {
+					this.externalId = ScoreList.this.index.getExternalDocid(this.docid);
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
 			}
+
+			return this.externalId;
 		}
 	}
 
@@ -35,6 +44,28 @@ public class ScoreList {
 	 */
 	private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
 
+	/**
+	 * The index that the internal document ids refer to.
+	 */
+	private IndexContext index;
+
+	/**
+	 * Create an empty score list for documents of the current index.
+	 */
+	public ScoreList() {
+		this(Idx.getCurrentContext());
+	}
+
+	/**
+	 * Create an empty score list for documents of an index.
+	 * 
+	 * @param index
+	 *            The index that the internal document ids refer to.
+	 */
+	public ScoreList(IndexContext index) {
+		this.index = index;
+	}
+
 	/**
 	 * Append a document score to a score list.
 	 * 
@@ -44,7 +75,22 @@ public class ScoreList {
 	 *            The document's score.
 	 */
 	public void add(int docid, double score) {
-		scores.add(new ScoreListEntry(docid, score));
+		scores.add(new ScoreListEntry(docid, null, score));
+	}
+
+	/**
+	 * Append a document score to a score list when the document's external
+	 * id is already known, e.g., because it was read from a file.
+	 * 
+	 * @param docid
+	 *            An internal document id.
+	 * @param externalId
+	 *            The document's external id.
+	 * @param score
+	 *            The document's score.
+	 */
+	public void add(int docid, String externalId, double score) {
+		scores.add(new ScoreListEntry(docid, externalId, score));
 	}
 	
 	/**
@@ -65,6 +111,25 @@ public class ScoreList {
 		return this.scores.get(n).docid;
 	}
 	
+	/**
+	 * Get the external docid of the n'th entry.
+	 * 
+	 * @param n
+	 *            The index of the requested document.
+	 * @return The external document id.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public String getExternalDocid(int n) throws IOException {
+		ScoreListEntry entry = this.scores.get(n);
+
+		if (entry.externalId == null) {
+			entry.externalId = this.index.getExternalDocid(entry.docid);
+		}
+
+		return entry.externalId;
+	}
+
 	/**
 	 * Get the score of a particular document with provied docId
 	 */
@@ -127,9 +192,9 @@ public class ScoreList {
 				return -1;
 			else if (s1.score < s2.score)
 				return 1;
-			else if (s1.externalId.compareTo(s2.externalId) < 0)
+			else if (s1.getExternalId().compareTo(s2.getExternalId()) < 0)
 				return -1;
-			else if (s1.externalId.compareTo(s2.externalId) > 0)
+			else if (s1.getExternalId().compareTo(s2.getExternalId()) > 0)
 				return 1;
 			else if (s1.docid > s2.docid)
 				return 1;
@@ -154,10 +219,9 @@ public class ScoreList {
 	 *            Number of results to keep.
 	 */
 	public void truncate(int num) {
-		List<ScoreListEntry> truncated = new ArrayList<ScoreListEntry>(
-				this.scores.subList(0, Math.min(num, scores.size())));
-		this.scores.clear();
-		this.scores = truncated;
+		if (num < this.scores.size()) {
+			this.scores.subList(Math.max(num, 0), this.scores.size()).clear();
+		}
 	}
 	
 	/**
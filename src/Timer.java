@@ -47,6 +47,20 @@ public class Timer {
     this.hasRun = true;
   }
 
+  /**
+   *  Get the time between start and stop.
+   *  @return The elapsed time in milliseconds.
+   *  @throws IllegalStateException The timer hasn't been run or is running now.
+   */
+  public double getElapsedMillis () {
+
+    if (! this.hasRun || this.isRunning)
+      throw new IllegalStateException(
+                "The timer can only be read after it is stopped.");
+
+    return (this.timeStop - this.timeStart) / 1e6;
+  }
+
   /**
    *  Converts a timing result to a string.
    *  @throws IllegalStateException The timer hasn't been run or is running now.
@@ -0,0 +1,313 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ * TopKCollector keeps the k highest-scoring documents seen so far in a binary
+ * min-heap, so that the score a new document must beat (the threshold) is
+ * always available. Query evaluation uses it instead of accumulating every
+ * matching document in a ScoreList, and dynamic pruning strategies use the
+ * threshold to skip documents that cannot enter the top k. Documents are
+ * stored in primitive arrays, so collecting a document allocates nothing.
+ * <p>
+ * ScoreList breaks score ties by external document id, which is expensive to
+ * look up. So that the final ranking is exactly the same as sorting every
+ * document, documents whose score equals the threshold are set aside
+ * without looking up their external ids. Only when many of them accumulate
+ * are the ties broken, and then only among the tied documents. Call
+ * getScoreList to get the collected documents; the caller sorts (and
+ * truncates) the list as usual.
+ * </p>
+ */
+public class TopKCollector {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The number of tied documents that may accumulate before ties are
+	 * broken by external document id.
+	 */
+	private static final int MIN_TIE_CAPACITY = 1024;
+
+	/**
+	 * The initial capacity of the heap. It grows as documents are collected,
+	 * so a large k (e.g., from a client) doesn't allocate k entries up front.
+	 */
+	private static final int INITIAL_HEAP_CAPACITY = 1024;
+
+	private int k;
+
+	/**
+	 * The index that the internal document ids refer to.
+	 */
+	private IndexContext index;
+
+	/**
+	 * The heap. The entry with the lowest score is at index 0. The arrays
+	 * grow until they have k entries.
+	 */
+	private int[] heapDocids;
+	private double[] heapScores;
+	private int heapSize = 0;
+
+	/**
+	 * Documents that were pushed out of the heap (or never entered it)
+	 * because their scores equal the lowest score in the heap.
+	 */
+	private int[] tieDocids = new int[16];
+	private int tieSize = 0;
+
+	/**
+	 * Documents whose scores are NaN (e.g., due to degenerate smoothing
+	 * parameters). They can't be ranked by score, so they are all kept.
+	 */
+	private int[] nanDocids = new int[16];
+	private int nanSize = 0;
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Collect documents of the current index.
+	 *
+	 * @param k
+	 *            The number of documents to keep. Must be positive.
+	 */
+	public TopKCollector(int k) {
+		this(k, Idx.getCurrentContext());
+	}
+
+	/**
+	 * Collect documents of an index.
+	 *
+	 * @param k
+	 *            The number of documents to keep. Must be positive.
+	 * @param index
+	 *            The index that the internal document ids refer to.
+	 */
+	public TopKCollector(int k, IndexContext index) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be positive, not " + k);
+		}
+
+		this.k = k;
+		this.index = index;
+		this.heapDocids = new int[Math.min(k, INITIAL_HEAP_CAPACITY)];
+		this.heapScores = new double[this.heapDocids.length];
+	}
+
+	/**
+	 * Offer a document to the collector.
+	 *
+	 * @param docid
+	 *            An internal document id.
+	 * @param score
+	 *            The document's score.
+	 * @throws IOException
+	 *             Error accessing the Lucene index while breaking ties.
+	 */
+	public void add(int docid, double score) throws IOException {
+
+		if (Double.isNaN(score)) {
+			if (this.nanSize == this.nanDocids.length) {
+				this.nanDocids = Arrays.copyOf(this.nanDocids, this.nanSize * 2);
+			}
+
+			this.nanDocids[this.nanSize++] = docid;
+			return;
+		}
+
+		if (this.heapSize < this.k) {
+			if (this.heapSize == this.heapDocids.length) {
+				int capacity = (int) Math.min(this.k, 2L * this.heapSize);
+				this.heapDocids = Arrays.copyOf(this.heapDocids, capacity);
+				this.heapScores = Arrays.copyOf(this.heapScores, capacity);
+			}
+
+			this.heapDocids[this.heapSize] = docid;
+			this.heapScores[this.heapSize] = score;
+			this.siftUp(this.heapSize++);
+			return;
+		}
+
+		double threshold = this.heapScores[0];
+
+		if (score < threshold) {
+			return;
+		}
+
+		if (score == threshold) {
+			this.addTie(docid);
+			return;
+		}
+
+		// Replace the lowest-scoring document. If the new threshold is the
+		// same as the old one, the replaced document is still a tie.
+
+		int replacedDocid = this.heapDocids[0];
+
+		this.heapDocids[0] = docid;
+		this.heapScores[0] = score;
+		this.siftDown(0);
+
+		if (this.heapScores[0] == threshold) {
+			this.addTie(replacedDocid);
+		} else {
+			this.tieSize = 0;
+		}
+	}
+
+	private void addTie(int docid) throws IOException {
+		if (this.tieSize == Math.max(this.k, MIN_TIE_CAPACITY)) {
+			this.breakTies();
+		}
+
+		if (this.tieSize == this.tieDocids.length) {
+			this.tieDocids = Arrays.copyOf(this.tieDocids, this.tieSize * 2);
+		}
+
+		this.tieDocids[this.tieSize++] = docid;
+	}
+
+	/**
+	 * Break the ties between the set-aside documents and the documents in
+	 * the heap that have the threshold score, the way that ScoreList does
+	 * (by external id, then by internal docid). The winners stay in the heap
+	 * and the other tied documents are discarded.
+	 *
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	private void breakTies() throws IOException {
+
+		double threshold = this.heapScores[0];
+		int[] slots = new int[this.heapSize];
+		int numSlots = 0;
+
+		for (int i = 0; i < this.heapSize; i++) {
+			if (this.heapScores[i] == threshold) {
+				slots[numSlots++] = i;
+			}
+		}
+
+		int numTied = numSlots + this.tieSize;
+		final int[] docids = new int[numTied];
+		final String[] externalIds = new String[numTied];
+		Integer[] order = new Integer[numTied];
+
+		for (int i = 0; i < numTied; i++) {
+			docids[i] = (i < numSlots) ? this.heapDocids[slots[i]]
+					: this.tieDocids[i - numSlots];
+			externalIds[i] = this.index.getExternalDocid(docids[i]);
+			order[i] = i;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				int c = externalIds[i1].compareTo(externalIds[i2]);
+				return (c != 0) ? c : Integer.compare(docids[i1], docids[i2]);
+			}
+		});
+
+		// The slots all have the same score, so the heap is still a heap.
+
+		for (int i = 0; i < numSlots; i++) {
+			this.heapDocids[slots[i]] = docids[order[i]];
+		}
+
+		this.tieSize = 0;
+	}
+
+	/**
+	 * Get the collected documents, unsorted.
+	 *
+	 * @return A score list that contains the top k documents, any documents
+	 *         tied with the k'th document, and any documents with NaN
+	 *         scores.
+	 */
+	public ScoreList getScoreList() {
+
+		ScoreList r = new ScoreList(this.index);
+
+		for (int i = 0; i < this.heapSize; i++) {
+			r.add(this.heapDocids[i], this.heapScores[i]);
+		}
+
+		for (int i = 0; i < this.tieSize; i++) {
+			r.add(this.tieDocids[i], this.heapScores[0]);
+		}
+
+		for (int i = 0; i < this.nanSize; i++) {
+			r.add(this.nanDocids[i], Double.NaN);
+		}
+
+		return r;
+	}
+
+	/**
+	 * Get the score that a document must reach to enter the top k.
+	 *
+	 * @return The lowest score in the top k, or negative infinity if fewer
+	 *         than k documents have been collected.
+	 */
+	public double getThreshold() {
+		return this.isFull() ? this.heapScores[0] : Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Have k documents been collected?
+	 *
+	 * @return True if the heap is full.
+	 */
+	public boolean isFull() {
+		return (this.heapSize == this.k);
+	}
+
+	private void siftDown(int i) {
+
+		int docid = this.heapDocids[i];
+		double score = this.heapScores[i];
+
+		while (true) {
+			int child = 2 * i + 1;
+
+			if (child >= this.heapSize)
+				break;
+
+			if ((child + 1 < this.heapSize)
+					&& (this.heapScores[child + 1] < this.heapScores[child]))
+				child++;
+
+			if (this.heapScores[child] >= score)
+				break;
+
+			this.heapDocids[i] = this.heapDocids[child];
+			this.heapScores[i] = this.heapScores[child];
+			i = child;
+		}
+
+		this.heapDocids[i] = docid;
+		this.heapScores[i] = score;
+	}
+
+	private void siftUp(int i) {
+
+		int docid = this.heapDocids[i];
+		double score = this.heapScores[i];
+
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+
+			if (this.heapScores[parent] <= score)
+				break;
+
+			this.heapDocids[i] = this.heapDocids[parent];
+			this.heapScores[i] = this.heapScores[parent];
+			i = parent;
+		}
+
+		this.heapDocids[i] = docid;
+		this.heapScores[i] = score;
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.*;
+
+/**
+ * A regression benchmark for weighted Indri operators. It builds a query
+ * like the ones that relevance feedback produces (a #WAND of many weighted
+ * terms) from the most frequent terms of a field, so that the query matches
+ * a large part of the index, and evaluates it repeatedly. For each trial it
+ * reports the time and the heap that the evaluated query retains; the
+ * retained heap should not grow with the number of documents scored.
+ * <p>
+ * Usage: java WAndBenchmark indexPath [numTerms [trials [field]]]
+ * </p>
+ */
+public class WAndBenchmark {
+
+	/**
+	 * @param args
+	 *            The index path, and optionally the number of query terms,
+	 *            the number of trials, and the field to search.
+	 * @throws Exception
+	 *             Error accessing the index.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 1) {
+			System.err.println("Usage:  java WAndBenchmark indexPath [numTerms [trials [field]]]");
+			System.exit(1);
+		}
+
+		int numTerms = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+		int trials = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+		String field = (args.length > 3) ? args[3] : "body";
+
+		Idx.open(args[0]);
+
+		String qString = feedbackQuery(field, numTerms);
+		RetrievalModel model = new RetrievalModelIndri();
+		Runtime runtime = Runtime.getRuntime();
+
+		System.out.println(qString);
+
+		for (int trial = 0; trial < trials; trial++) {
+
+			long before = usedHeap(runtime);
+			Timer timer = new Timer();
+			timer.start();
+
+			Qry q = QryParser.getQuery(qString);
+			q.initialize(model);
+
+			TopKCollector topK = new TopKCollector(100);
+			int matches = 0;
+
+			while (q.docIteratorHasMatch(model)) {
+				int docid = q.docIteratorGetMatch();
+				topK.add(docid, ((QrySop) q).getScore(model));
+				q.docIteratorAdvancePast(docid);
+				matches++;
+			}
+
+			timer.stop();
+
+			// Measure while the query is still reachable.
+
+			long retained = usedHeap(runtime) - before;
+			System.out.println("trial " + trial + ": " + matches + " documents scored, "
+					+ timer + ", " + (retained >> 10) + " KB retained, 100th score "
+					+ topK.getThreshold());
+		}
+	}
+
+	/**
+	 * Build a #WAND query from the most frequent terms of a field. Weights
+	 * decrease with rank, as they do in expanded queries.
+	 */
+	private static String feedbackQuery(String field, int numTerms)
+			throws Exception {
+
+		final Map<String, Integer> dfs = new HashMap<String, Integer>();
+		TermsEnum termsEnum = MultiFields.getTerms(Idx.INDEXREADER, field).iterator();
+		BytesRef term;
+
+		while ((term = termsEnum.next()) != null) {
+			String termString = term.utf8ToString();
+
+			if (termString.matches("[a-z]+")) {
+				dfs.put(termString, termsEnum.docFreq());
+			}
+		}
+
+		List<String> terms = new ArrayList<String>(dfs.keySet());
+		Collections.sort(terms, new Comparator<String>() {
+			public int compare(String t1, String t2) {
+				int c = Integer.compare(dfs.get(t2), dfs.get(t1));
+				return (c != 0) ? c : t1.compareTo(t2);
+			}
+		});
+
+		StringBuilder query = new StringBuilder("#wand (");
+
+		for (int i = 0; i < Math.min(numTerms, terms.size()); i++) {
+			query.append(String.format(" %.4f %s.%s", 1.0 / (i + 2), terms.get(i), field));
+		}
+
+		return query.append(" )").toString();
+	}
+
+	private static long usedHeap(Runtime runtime) {
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}